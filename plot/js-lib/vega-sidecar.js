@@ -0,0 +1,72 @@
+// Long-lived Vega-Lite compiler used by VegaSidecar.java.
+//
+// Usage: node plot/js-lib/vega-sidecar.js
+//
+// Reads one batch per line on stdin:
+//   {"requests": [{"op": "compile", "spec": <vega-lite spec>},
+//                 {"op": "render", "spec": <vega spec>}, ...]}
+// and writes one line per batch on stdout, in the same order:
+//   {"results": [{"spec": <vega spec>, "message": "..."},
+//                {"svg": "...", "background": ..., "message": "..."}, ...]}
+// A failed request gets an "error" field instead.
+var readline = require('readline');
+var vega = require('./vega.js');
+var vl = require('./vega-lite.js');
+
+// stdout carries the protocol, so collect log output as messages instead
+var out = process.stdout;
+var messages = [];
+function capture() {
+  messages.push([].slice.call(arguments).join(' '));
+}
+console.log = console.info = console.debug = console.warn = console.error = capture;
+
+function compile(spec) {
+  return {spec: vl.compile(spec).spec};
+}
+
+function render(spec) {
+  var view = new vega.View(vega.parse(spec, {logLevel: vega.Info})).renderer('none').initialize();
+  var result = {svg: null, background: view._background};
+  return view.toSVG().then(function(svg) {
+    result.svg = svg;
+    return result;
+  });
+}
+
+function handle(request) {
+  messages = [];
+  return Promise.resolve().then(function() {
+    if (request.op === 'compile') return compile(request.spec);
+    if (request.op === 'render') return render(request.spec);
+    throw new Error('Unknown op: ' + request.op);
+  }).then(function(result) {
+    result.message = messages.join('\n');
+    return result;
+  }, function(e) {
+    return {error: String(e), message: messages.join('\n')};
+  });
+}
+
+var lines = readline.createInterface({input: process.stdin, terminal: false});
+var queue = Promise.resolve();
+lines.on('line', function(line) {
+  queue = queue.then(function() {
+    var requests = JSON.parse(line).requests;
+    var results = [];
+    // Requests share the message buffer, so run them one at a time
+    var chain = Promise.resolve();
+    requests.forEach(function(request) {
+      chain = chain.then(function() { return handle(request); })
+                   .then(function(result) { results.push(result); });
+    });
+    return chain.then(function() {
+      out.write(JSON.stringify({results: results}) + '\n');
+    });
+  }).catch(function(e) {
+    out.write(JSON.stringify({error: String(e)}) + '\n');
+  });
+});
+lines.on('close', function() {
+  queue.then(function() { process.exit(0); });
+});
@@ -122,15 +122,13 @@ class BeamParserState extends ChartParserState {
   protected void build(int start, int end) {
     applyNonCatUnaryRules(start, end, start, parser.trie, new ArrayList<Derivation>(), new IntRef(0));
 
-    Set<String> cellsPruned = new HashSet<>();
+    BitSet cellsPruned = new BitSet();
     applyCatUnaryRules(start, end, cellsPruned);
 
-    for (Map.Entry<String, List<Derivation>> entry : chart[start][end].entrySet())
-      pruneCell(cellsPruned, entry.getKey(), start, end, entry.getValue());
-  }
-
-  private static String cellString(String cat, int start, int end) {
-    return cat + ":" + start + ":" + end;
+    for (int k = 0; k < numCats(start, end); k++) {
+      int catId = getCat(start, end, k);
+      pruneCell(cellsPruned, catId, start, end, getCell(start, end, catId));
+    }
   }
 
   // Return number of new derivations added
@@ -167,27 +165,27 @@ class BeamParserState extends ChartParserState {
   }
 
   // Don't prune the same cell more than once.
-  protected void pruneCell(Set<String> cellsPruned, String cat, int start, int end, List<Derivation> derivations) {
-    String cell = cellString(cat, start, end);
-    if (cellsPruned.contains(cell)) return;
-    cellsPruned.add(cell);
-    pruneCell(cell, derivations);
+  // cellsPruned: ids of the categories of the span that have been pruned
+  protected void pruneCell(BitSet cellsPruned, int catId, int start, int end, List<Derivation> derivations) {
+    if (cellsPruned.get(catId)) return;
+    cellsPruned.set(catId);
+    pruneCell(start, end, catId, derivations);
   }
 
   // Apply all unary rules with RHS category.
   // Before applying each unary rule (rule.lhs -> rhsCat), we can prune the cell of rhsCat
   // because we assume acyclicity, so rhsCat's cell will never grow.
-  private void applyCatUnaryRules(int start, int end, Set<String> cellsPruned) {
+  private void applyCatUnaryRules(int start, int end, BitSet cellsPruned) {
     for (Rule rule : parser.catUnaryRules) {
-      if (!coarseAllows(rule.lhs, start, end))
+      if (!coarseAllows(rule.getLhsId(), start, end))
         continue;
-      String rhsCat = rule.rhs.get(0);
-      List<Derivation> derivations = chart[start][end].get(rhsCat);
+      int rhsCatId = CategoryIndex.global.getIdIfPresent(rule.rhs.get(0));
+      List<Derivation> derivations = getCell(start, end, rhsCatId);
       if (Parser.opts.verbose >= 5)
         LogInfo.logs("applyCatUnaryRules %s %s %s %s", start, end, rule, derivations);
       if (derivations == null) continue;
 
-      pruneCell(cellsPruned, rhsCat, start, end, derivations);  // Prune before applying rules to eliminate cruft!
+      pruneCell(cellsPruned, rhsCatId, start, end, derivations);  // Prune before applying rules to eliminate cruft!
 
       for (Derivation deriv : derivations)
         applyRule(start, end, rule, Collections.singletonList(deriv));
@@ -220,7 +218,7 @@ class BeamParserState extends ChartParserState {
     // apply the rule on all the children gathered during the walk.
     if (i == end) {
       for (Rule rule : node.rules) {
-        if (coarseAllows(rule.lhs, start, end)) {
+        if (coarseAllows(rule.getLhsId(), start, end)) {
           numNew.value += applyRule(start, end, rule, children);
         }
       }
@@ -236,9 +234,11 @@ class BeamParserState extends ChartParserState {
 
     // Advance non-terminal category
     for (int j = i + 1; j <= end; j++) {
-      for (Map.Entry<String, List<Derivation>> entry : chart[i][j].entrySet()) {
-        Trie nextNode = node.next(entry.getKey());
-        for (Derivation arg : entry.getValue()) {
+      for (int k = 0; k < numCats(i, j); k++) {
+        int catId = getCat(i, j, k);
+        Trie nextNode = node.nextCat(catId);
+        if (nextNode == null) continue;
+        for (Derivation arg : getCell(i, j, catId)) {
           children.add(arg);
           applyNonCatUnaryRules(start, end, j, nextNode, children, numNew);
           children.remove(children.size() - 1);
@@ -256,60 +256,53 @@ class BeamParserState extends ChartParserState {
   public void keepTopDownReachable() {
     if (numTokens == 0) return;
 
-    Set<String> reachable = new HashSet<>();
-    collectReachable(reachable, Rule.rootCat, 0, numTokens);
+    // Cells are marked by cellIndex()
+    BitSet reachable = new BitSet();
+    collectReachable(reachable, CategoryIndex.global.getId(Rule.rootCat), 0, numTokens);
 
     // Remove all derivations associated with (cat, start, end) that aren't reachable.
     for (int start = 0; start < numTokens; start++) {
       for (int end = start + 1; end <= numTokens; end++) {
-        List<String> toRemoveCats = new LinkedList<>();
-        for (String cat : chart[start][end].keySet()) {
-          String key = catStartEndKey(cat, start, end);
-          if (!reachable.contains(key)) {
-            toRemoveCats.add(cat);
-          }
-        }
-        Collections.sort(toRemoveCats);
-        for (String cat : toRemoveCats) {
+        for (int k = numCats(start, end) - 1; k >= 0; k--) {
+          int catId = getCat(start, end, k);
+          if (reachable.get(cellIndex(start, end, catId))) continue;
           if (parser.verbose(4)) {
-            LogInfo.logs("Pruning chart %s(%s,%s)", cat, start, end);
+            LogInfo.logs("Pruning chart %s(%s,%s)", CategoryIndex.global.getCategory(catId), start, end);
           }
-          chart[start][end].remove(cat);
+          setCell(start, end, catId, null);
         }
       }
     }
   }
 
-  private void collectReachable(Set<String> reachable, String cat, int start, int end) {
-    String key = catStartEndKey(cat, start, end);
-    if (reachable.contains(key)) return;
-
-    if (!chart[start][end].containsKey(cat)) {
+  private void collectReachable(BitSet reachable, int catId, int start, int end) {
+    List<Derivation> derivations = getCell(start, end, catId);
+    if (derivations == null) {
       // This should only happen for the root when there are no parses.
       return;
     }
 
-    reachable.add(key);
-    for (Derivation deriv : chart[start][end].get(cat)) {
+    int cell = cellIndex(start, end, catId);
+    if (reachable.get(cell)) return;
+    reachable.set(cell);
+    for (Derivation deriv : derivations) {
       for (Derivation subderiv : deriv.children) {
-        collectReachable(reachable, subderiv.cat, subderiv.start, subderiv.end);
+        collectReachable(reachable, CategoryIndex.global.getId(subderiv.cat), subderiv.start, subderiv.end);
       }
     }
   }
 
-  private String catStartEndKey(String cat, int start, int end) {
-    return cat + ":" + start + ":" + end;
-  }
-
   // For pruning with the coarse state
   protected boolean coarseAllows(Trie node, int start, int end) {
     if (coarseState == null) return true;
-    return SetUtils.intersects(
-            node.cats,
-            coarseState.chart[start][end].keySet());
+    for (int k = 0; k < coarseState.numCats(start, end); k++) {
+      if (node.hasCat(coarseState.getCat(start, end, k)))
+        return true;
+    }
+    return false;
   }
-  protected boolean coarseAllows(String cat, int start, int end) {
+  protected boolean coarseAllows(int catId, int start, int end) {
     if (coarseState == null) return true;
-    return coarseState.chart[start][end].containsKey(cat);
+    return coarseState.getCell(start, end, catId) != null;
   }
 }
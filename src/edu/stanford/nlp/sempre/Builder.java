@@ -67,6 +67,11 @@ public class Builder {
       params = new Params();
       if (!Strings.isNullOrEmpty(opts.inParamsPath))
         params.read(opts.inParamsPath);
+      if (FeatureIndex.opts.freeze) {
+        for (String feature : params.getWeights().keySet())
+          FeatureIndex.global.getId(feature);
+        FeatureIndex.global.freeze();
+      }
     }
   }
 
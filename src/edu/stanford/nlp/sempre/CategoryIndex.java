@@ -0,0 +1,58 @@
+package edu.stanford.nlp.sempre;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A CategoryIndex maps each category (e.g., $Entity) to a dense integer id,
+ * so that chart parsers can index chart cells by (start, end, category id)
+ * instead of hashing category names.
+ *
+ * Categories are added when rules are added to the Grammar (and when a chart
+ * first sees a category); ids never change.  Lookups are lock-free.
+ */
+public class CategoryIndex {
+  // The index shared by all grammars and charts
+  public static final CategoryIndex global = new CategoryIndex();
+
+  private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+  // id -> category; an id is published in |ids| only after its category is stored here
+  private volatile String[] categories = new String[64];
+  private volatile int size;
+
+  private CategoryIndex() {
+    for (String cat : Rule.specialCats)
+      getId(cat);
+  }
+
+  // Return the id of |cat|, adding it if it is new.
+  public int getId(String cat) {
+    Integer id = ids.get(cat);
+    if (id != null) return id;
+    synchronized (this) {
+      id = ids.get(cat);
+      if (id != null) return id;
+      String[] current = categories;
+      if (size == current.length)
+        current = Arrays.copyOf(current, 2 * current.length);
+      current[size] = cat;
+      categories = current;
+      id = size;
+      size = id + 1;
+      ids.put(cat, id);
+      return id;
+    }
+  }
+
+  // Return the id of |cat| without adding it (-1 if it is not in the index).
+  public int getIdIfPresent(String cat) {
+    Integer id = ids.get(cat);
+    return id == null ? -1 : id;
+  }
+
+  public String getCategory(int id) {
+    return categories[id];
+  }
+
+  public int size() { return size; }
+}
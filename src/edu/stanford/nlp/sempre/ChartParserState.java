@@ -3,13 +3,8 @@ package edu.stanford.nlp.sempre;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import fig.basic.LogInfo;
-import fig.basic.MapUtils;
 
-import java.lang.reflect.Array;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 
 /**
  * Actually does the parsing.  Main method is infer(), whose job is to fill in
@@ -19,6 +14,16 @@ import java.util.Map;
  */
 public abstract class ChartParserState extends ParserState {
   // cell (start, end, category) -> list of derivations (sorted by decreasing score) [beam]
+  // One row per span, indexed by the id of the category in CategoryIndex.global.
+  // A row is allocated when its span gets its first derivation, so the chart holds
+  // one reference per category for each non-empty span (not numSpans * numCats).
+  private final List<Derivation>[][] cells;
+  private final int numSpans;
+  // For each span, the ids of its non-empty cells in the order they were added
+  private final int[][] spanCats;
+  private final int[] spanNumCats;
+
+  // The same chart as a map category -> derivations for each span (views of |cells|)
   protected final Map<String, List<Derivation>>[][] chart;
 
   // For visualizing how chart is filled
@@ -31,8 +36,11 @@ public abstract class ChartParserState extends ParserState {
     super(parser, params, ex, computeExpectedCounts);
 
     // Initialize the chart.
-    this.chart = (HashMap<String, List<Derivation>>[][])
-        Array.newInstance(HashMap.class, numTokens, numTokens + 1);
+    this.numSpans = numTokens * (numTokens + 1) / 2;
+    this.cells = new List[numSpans][];
+    this.spanCats = new int[numSpans][];
+    this.spanNumCats = new int[numSpans];
+    this.chart = new Map[numTokens][numTokens + 1];
     this.phrases = new String[numTokens][numTokens + 1];
 
     for (int start = 0; start < numTokens; start++) {
@@ -42,23 +50,86 @@ public abstract class ChartParserState extends ParserState {
           sb.append(' ');
         sb.append(this.ex.languageInfo.tokens.get(end - 1));
         phrases[start][end] = sb.toString();
-        chart[start][end] = new HashMap<>();
+        chart[start][end] = new SpanCells(start, end);
       }
     }
   }
 
+  // Only touches the non-empty cells; the rows are kept for the next parse.
   public void clearChart() {
-    for (int start = 0; start < numTokens; start++) {
-      for (int end = start + 1; end <= numTokens; end++) {
-        chart[start][end].clear();
-      }
+    for (int span = 0; span < numSpans; span++) {
+      for (int i = 0; i < spanNumCats[span]; i++)
+        cells[span][spanCats[span][i]] = null;
+      spanNumCats[span] = 0;
     }
   }
 
+  // Spans 0 <= start < end <= numTokens, ordered by end then start
+  private int spanIndex(int start, int end) { return end * (end - 1) / 2 + start; }
+
+  // Distinct index of cell (start, end, catId), e.g., for marking cells in a BitSet.
+  protected int cellIndex(int start, int end, int catId) {
+    return catId * numSpans + spanIndex(start, end);
+  }
+
+  // Return the derivations in cell (start, end, catId), or null if there are none.
+  protected List<Derivation> getCell(int start, int end, int catId) {
+    List<Derivation>[] row = cells[spanIndex(start, end)];
+    return row != null && catId >= 0 && catId < row.length ? row[catId] : null;
+  }
+
+  protected List<Derivation> getCell(int start, int end, String cat) {
+    return getCell(start, end, CategoryIndex.global.getIdIfPresent(cat));
+  }
+
+  // The non-empty cells of span (start, end) have category ids getCat(start, end, i)
+  // for 0 <= i < numCats(start, end).
+  protected int numCats(int start, int end) { return spanNumCats[spanIndex(start, end)]; }
+  protected int getCat(int start, int end, int i) { return spanCats[spanIndex(start, end)][i]; }
+
+  // Set cell (start, end, catId) to |derivations| (null empties the cell).
+  @SuppressWarnings({ "unchecked" })
+  protected void setCell(int start, int end, int catId, List<Derivation> derivations) {
+    int span = spanIndex(start, end);
+    List<Derivation>[] row = cells[span];
+    if (row == null || catId >= row.length) {
+      if (derivations == null) return;
+      // Make room for the categories in the index, including ones added after the chart was created
+      int rowSize = Math.max(catId + 1, CategoryIndex.global.size());
+      row = cells[span] = row == null ? new List[rowSize] : Arrays.copyOf(row, rowSize);
+    }
+    int[] cats = spanCats[span];
+    int n = spanNumCats[span];
+    if (row[catId] == null && derivations != null) {
+      if (cats == null)
+        cats = spanCats[span] = new int[8];
+      else if (n == cats.length)
+        cats = spanCats[span] = Arrays.copyOf(cats, 2 * n);
+      cats[n] = catId;
+      spanNumCats[span] = n + 1;
+    } else if (row[catId] != null && derivations == null) {
+      int i = 0;
+      while (cats[i] != catId) i++;
+      System.arraycopy(cats, i + 1, cats, i, n - i - 1);
+      spanNumCats[span] = n - 1;
+    }
+    row[catId] = derivations;
+  }
+
+  // Prune cell (start, end, catId); its description is only built if it is used.
+  protected void pruneCell(int start, int end, int catId, List<Derivation> derivations) {
+    String cell = null;
+    if (derivations.size() > maxCellSize || Parser.opts.verbose >= 1)
+      cell = CategoryIndex.global.getCategory(catId) + ":" + start + ":" + end;
+    pruneCell(cell, derivations);
+  }
+
   // Call this method in infer()
   protected void setPredDerivations() {
     predDerivations.clear();
-    predDerivations.addAll(MapUtils.get(chart[0][numTokens], Rule.rootCat, Derivation.emptyList));
+    List<Derivation> derivations = getCell(0, numTokens, Rule.rootCat);
+    if (derivations != null)
+      predDerivations.addAll(derivations);
   }
 
   private void visualizeChart() {
@@ -79,9 +150,10 @@ public abstract class ChartParserState extends ParserState {
 
     if (Parser.opts.pruneErrorValues && deriv.value instanceof ErrorValue) return;
 
-    List<Derivation> derivations = chart[deriv.start][deriv.end].get(deriv.cat);
-    if (chart[deriv.start][deriv.end].get(deriv.cat) == null)
-      chart[deriv.start][deriv.end].put(deriv.cat, derivations = new ArrayList<>());
+    int catId = CategoryIndex.global.getId(deriv.cat);
+    List<Derivation> derivations = getCell(deriv.start, deriv.end, catId);
+    if (derivations == null)
+      setCell(deriv.start, deriv.end, catId, derivations = new ArrayList<>());
     derivations.add(deriv);
     totalGeneratedDerivs++;
 
@@ -94,6 +166,68 @@ public abstract class ChartParserState extends ParserState {
     return chart;
   }
 
+  // The cells of one span as a map category -> derivations
+  private class SpanCells extends AbstractMap<String, List<Derivation>> {
+    private final int start, end;
+
+    SpanCells(int start, int end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    private int getId(Object key) {
+      return key instanceof String ? CategoryIndex.global.getIdIfPresent((String) key) : -1;
+    }
+
+    @Override public int size() { return numCats(start, end); }
+    @Override public boolean containsKey(Object key) { return get(key) != null; }
+    @Override public List<Derivation> get(Object key) { return getCell(start, end, getId(key)); }
+
+    @Override
+    public List<Derivation> put(String key, List<Derivation> value) {
+      int catId = CategoryIndex.global.getId(key);
+      List<Derivation> old = getCell(start, end, catId);
+      setCell(start, end, catId, value);
+      return old;
+    }
+
+    @Override
+    public List<Derivation> remove(Object key) {
+      int catId = getId(key);
+      List<Derivation> old = getCell(start, end, catId);
+      if (old != null)
+        setCell(start, end, catId, null);
+      return old;
+    }
+
+    @Override
+    public void clear() {
+      while (numCats(start, end) > 0)
+        setCell(start, end, getCat(start, end, numCats(start, end) - 1), null);
+    }
+
+    @Override
+    public Set<Map.Entry<String, List<Derivation>>> entrySet() {
+      return new AbstractSet<Map.Entry<String, List<Derivation>>>() {
+        @Override public int size() { return numCats(start, end); }
+
+        @Override
+        public Iterator<Map.Entry<String, List<Derivation>>> iterator() {
+          return new Iterator<Map.Entry<String, List<Derivation>>>() {
+            private int i = 0;
+            @Override public boolean hasNext() { return i < numCats(start, end); }
+            @Override
+            public Map.Entry<String, List<Derivation>> next() {
+              if (!hasNext()) throw new NoSuchElementException();
+              int catId = getCat(start, end, i++);
+              return new SimpleImmutableEntry<>(CategoryIndex.global.getCategory(catId), getCell(start, end, catId));
+            }
+          };
+        }
+      };
+    }
+  }
+
   // TODO(joberant): move to visualization utility class
   public static class CatSpan {
     @JsonProperty
@@ -0,0 +1,134 @@
+package edu.stanford.nlp.sempre;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fig.basic.LogInfo;
+import fig.basic.Option;
+
+/**
+ * Executes the predicted derivations of a ParserState on a shared, bounded
+ * thread pool and gathers the responses in order.
+ *
+ * Opt-in (numThreads > 1), and only used for executors that declare themselves
+ * thread-safe (Executor.isThreadSafe()).
+ * Each derivation gets at most |timeout| seconds once it starts running.
+ * If the parsing thread is interrupted (e.g., InteractiveServer giving up after
+ * maxExecutionTime), all outstanding executions are cancelled.
+ */
+public final class ExecutionStage {
+  public static class Options {
+    @Option(gloss = "Number of threads for executing derivations in parallel (1: execute sequentially)")
+    public int numThreads = 1;
+    @Option(gloss = "Maximum time in seconds to execute one derivation (0: no limit)")
+    public double timeout = 0;
+    @Option(gloss = "Verbosity")
+    public int verbose = 0;
+  }
+  public static Options opts = new Options();
+
+  private ExecutionStage() { }
+
+  private static ExecutorService pool;
+
+  private static synchronized ExecutorService getPool() {
+    if (pool == null) {
+      AtomicInteger threadCount = new AtomicInteger();
+      pool = Executors.newFixedThreadPool(opts.numThreads, r -> {
+        Thread t = new Thread(r, "ExecutionStage-" + threadCount.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      });
+    }
+    return pool;
+  }
+
+  public static boolean isEnabled(Executor executor) {
+    return opts.numThreads > 1 && executor.isThreadSafe();
+  }
+
+  private static class Task implements Callable<Executor.Response> {
+    final Executor executor;
+    final Formula formula;
+    final ContextValue context;
+    volatile long startTime = -1;
+
+    Task(Executor executor, Formula formula, ContextValue context) {
+      this.executor = executor;
+      this.formula = formula;
+      this.context = context;
+    }
+
+    @Override
+    public Executor.Response call() {
+      startTime = System.nanoTime();
+      return executor.execute(formula, context);
+    }
+  }
+
+  /**
+   * Execute all derivations in |derivs| that have not been executed yet.
+   * Values are assigned on the calling thread, in order.
+   */
+  public static void execute(List<Derivation> derivs, Executor executor, ContextValue context) {
+    List<Derivation> pending = new ArrayList<>();
+    List<Task> tasks = new ArrayList<>();
+    List<Future<Executor.Response>> futures = new ArrayList<>();
+    ExecutorService service = getPool();
+    for (Derivation deriv : derivs) {
+      if (deriv.isExecuted()) continue;
+      Task task = new Task(executor, deriv.formula, context);
+      pending.add(deriv);
+      tasks.add(task);
+      futures.add(service.submit(task));
+    }
+
+    long timeoutNanos = (long) (opts.timeout * 1e9);
+    int numTimeouts = 0;
+    try {
+      for (int i = 0; i < pending.size(); i++) {
+        Executor.Response response = await(tasks.get(i), futures.get(i), timeoutNanos);
+        if (response == null) {
+          numTimeouts++;
+          response = new Executor.Response(ErrorValue.timeout);
+        }
+        pending.get(i).value = response.value;
+        pending.get(i).executorStats = response.stats;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("ExecutionStage interrupted", e);
+    } finally {
+      for (Future<Executor.Response> future : futures)
+        future.cancel(true);
+    }
+    if (opts.verbose >= 1)
+      LogInfo.logs("ExecutionStage: executed %d derivations (%d timed out)", pending.size(), numTimeouts);
+  }
+
+  // Returns null if the task ran for longer than |timeoutNanos|.
+  private static Executor.Response await(Task task, Future<Executor.Response> future, long timeoutNanos)
+      throws InterruptedException {
+    while (true) {
+      try {
+        if (timeoutNanos <= 0)
+          return future.get();
+        long startTime = task.startTime;
+        // If the task is still queued, check back after one timeout period
+        long waitNanos = startTime < 0 ? timeoutNanos : startTime + timeoutNanos - System.nanoTime();
+        return future.get(Math.max(0, waitNanos), TimeUnit.NANOSECONDS);
+      } catch (TimeoutException e) {
+        long startTime = task.startTime;
+        if (startTime >= 0 && System.nanoTime() - startTime >= timeoutNanos) {
+          future.cancel(true);
+          return null;
+        }
+      } catch (ExecutionException e) {
+        // Executors should return ErrorValues rather than throw
+        return new Executor.Response(ErrorValue.badJava(e.getCause().toString()));
+      }
+    }
+  }
+}
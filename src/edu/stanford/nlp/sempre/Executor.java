@@ -21,4 +21,7 @@ public abstract class Executor {
 
   // Execute the formula in the given context.
   public abstract Response execute(Formula formula, ContextValue context);
+
+  // Whether execute() may be called from several threads at once (see ExecutionStage).
+  public boolean isThreadSafe() { return false; }
 }
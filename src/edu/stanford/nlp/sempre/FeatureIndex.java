@@ -0,0 +1,72 @@
+package edu.stanford.nlp.sempre;
+
+import fig.basic.*;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A FeatureIndex maps each feature (string) to a dense integer id, so that
+ * feature vectors and parameters can work on ids and only go back to
+ * strings for logging and reading/writing parameters.
+ *
+ * Ids are assigned in the order features are first seen and never change.
+ * Only learning adds features (reading and updating parameters); feature
+ * extraction just looks them up (see FeatureVector), so the index is bounded
+ * by the features that have weights.
+ * Lookups are lock-free; adding a new feature takes a lock.
+ * Once frozen (e.g., when serving a trained model without learning),
+ * unknown features get the id -1 instead of a new id.
+ */
+public class FeatureIndex {
+  public static class Options {
+    @Option(gloss = "Freeze the feature index after reading the parameters: features not in the parameters are never learned (only for serving without learning)")
+    public boolean freeze = false;
+  }
+  public static Options opts = new Options();
+
+  // The index shared by all feature vectors and parameters
+  public static final FeatureIndex global = new FeatureIndex();
+
+  private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+  // id -> feature; an id is published in |ids| only after its feature is stored here
+  private volatile String[] features = new String[1024];
+  private volatile int size;
+  private volatile boolean frozen;
+
+  // Return the id of |feature|, adding it if it is new (or -1 if the index is frozen).
+  public int getId(String feature) {
+    Integer id = ids.get(feature);
+    if (id != null) return id;
+    if (frozen) return -1;
+    synchronized (this) {
+      id = ids.get(feature);
+      if (id != null) return id;
+      if (frozen) return -1;
+      String[] current = features;
+      if (size == current.length)
+        current = Arrays.copyOf(current, 2 * current.length);
+      current[size] = feature;
+      features = current;
+      id = size;
+      size = id + 1;
+      ids.put(feature, id);
+      return id;
+    }
+  }
+
+  // Return the id of |feature| without adding it (-1 if it is not in the index).
+  public int getIdIfPresent(String feature) {
+    Integer id = ids.get(feature);
+    return id == null ? -1 : id;
+  }
+
+  public String getFeature(int id) {
+    return features[id];
+  }
+
+  public int size() { return size; }
+
+  public void freeze() { frozen = true; }
+  public boolean isFrozen() { return frozen; }
+}
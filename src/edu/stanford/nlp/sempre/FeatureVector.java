@@ -14,6 +14,13 @@ import java.util.*;
  * We enforce the convention that each feature is (domain, name),
  * so that the key space isn't a free-for-all.
  *
+ * Features are stored by their id in FeatureIndex.global, so that scoring
+ * and merging work on integers; strings are only looked up for matching,
+ * logging and conversion to maps.  Features that are not in the index yet
+ * (they have never been learned, so their weight is the default) are kept
+ * as strings: extracting features never adds to the global index, which
+ * would otherwise grow with every utterance a long-running server sees.
+ *
  * @author Percy Liang
  * @author Jonathan Berant
  */
@@ -26,10 +33,12 @@ public class FeatureVector {
   }
   public static Options opts = new Options();
 
-  // These features map to the value 1 (most common case in NLP).
-  private ArrayList<String> indicatorFeatures;
-  // General features
-  private ArrayList<Pair<String, Double>> generalFeatures;
+  // Feature ids and values; indicator features (most common case in NLP) have the value 1.
+  private SparseVector features;
+  // Features not in FeatureIndex.global when they were added, and their values
+  private String[] unindexedFeatures;
+  private double[] unindexedValues;
+  private int numUnindexed;
   // A dense array of features to save memory
   private double[] denseFeatures;
   private static final String DENSE_NAME = "Dns";
@@ -47,16 +56,34 @@ public class FeatureVector {
     add(toFeature(domain, name));
   }
   private void add(String feature) {
-    if (indicatorFeatures == null) indicatorFeatures = new ArrayList<>();
-    indicatorFeatures.add(feature);
+    add(feature, 1);
   }
 
   public void add(String domain, String name, double value) {
     add(toFeature(domain, name), value);
   }
   private void add(String feature, double value) {
-    if (generalFeatures == null) generalFeatures = new ArrayList<>();
-    generalFeatures.add(Pair.newPair(feature, value));
+    int id = FeatureIndex.global.getIdIfPresent(feature);
+    if (id >= 0)
+      addId(id, value);
+    else
+      addUnindexed(feature, value);
+  }
+  private void addId(int id, double value) {
+    if (features == null) features = new SparseVector();
+    features.add(id, value);
+  }
+  private void addUnindexed(String feature, double value) {
+    if (unindexedFeatures == null) {
+      unindexedFeatures = new String[4];
+      unindexedValues = new double[4];
+    } else if (numUnindexed == unindexedFeatures.length) {
+      unindexedFeatures = Arrays.copyOf(unindexedFeatures, 2 * numUnindexed);
+      unindexedValues = Arrays.copyOf(unindexedValues, 2 * numUnindexed);
+    }
+    unindexedFeatures[numUnindexed] = feature;
+    unindexedValues[numUnindexed] = value;
+    numUnindexed++;
   }
 
   public void addWithBias(String domain, String name, double value) {
@@ -102,19 +129,21 @@ public class FeatureVector {
   public void add(double scale, FeatureVector that) { add(scale, that, AllFeatureMatcher.matcher); }
   public void add(FeatureVector that, FeatureMatcher matcher) { add(1, that, matcher); }
   public void add(double scale, FeatureVector that, FeatureMatcher matcher) {
-    if (that.indicatorFeatures != null) {
-      for (String f : that.indicatorFeatures)
-        if (matcher.matches(f)) {
-          if (scale == 1)
-            add(f);
-          else
-            add(f, scale);
+    if (that.features != null) {
+      if (matcher == AllFeatureMatcher.matcher) {
+        if (features == null) features = new SparseVector(that.features.size());
+        features.add(scale, that.features);
+      } else {
+        for (int i = 0; i < that.features.size(); i++) {
+          int id = that.features.getId(i);
+          if (matcher.matches(FeatureIndex.global.getFeature(id)))
+            addId(id, scale * that.features.getValue(i));
         }
+      }
     }
-    if (that.generalFeatures != null) {
-      for (Pair<String, Double> pair : that.generalFeatures)
-        if (matcher.matches(pair.getFirst()))
-          add(pair.getFirst(), scale * pair.getSecond());
+    for (int i = 0; i < that.numUnindexed; i++) {
+      if (matcher.matches(that.unindexedFeatures[i]))
+        add(that.unindexedFeatures[i], scale * that.unindexedValues[i]);
     }
     // dense features are always added
     if (that.denseFeatures != null) {
@@ -126,14 +155,10 @@ public class FeatureVector {
   // Return the dot product between this feature vector and the weight vector (parameters).
   public double dotProduct(Params params) {
     double sum = 0;
-    if (indicatorFeatures != null) {
-      for (String f : indicatorFeatures)
-        sum += params.getWeight(f);
-    }
-    if (generalFeatures != null) {
-      for (Pair<String, Double> pair : generalFeatures)
-        sum += params.getWeight(pair.getFirst()) * pair.getSecond();
-    }
+    if (features != null)
+      sum += features.dotProduct(params::getWeight);
+    for (int i = 0; i < numUnindexed; i++)
+      sum += params.getWeight(unindexedFeatures[i]) * unindexedValues[i];
     if (denseFeatures != null) {
       for (int i = 0; i < denseFeatures.length; ++i)
         sum += params.getWeight(DENSE_NAME + "_" + i) * denseFeatures[i];
@@ -147,15 +172,16 @@ public class FeatureVector {
     increment(factor, map, AllFeatureMatcher.matcher);
   }
   public void increment(double factor, Map<String, Double> map, FeatureMatcher matcher) {
-    if (indicatorFeatures != null) {
-      for (String feature : indicatorFeatures)
+    if (features != null) {
+      for (int i = 0; i < features.size(); i++) {
+        String feature = FeatureIndex.global.getFeature(features.getId(i));
         if (matcher.matches(feature))
-          MapUtils.incr(map, feature, factor);
+          MapUtils.incr(map, feature, factor * features.getValue(i));
+      }
     }
-    if (generalFeatures != null) {
-      for (Pair<String, Double> pair : generalFeatures)
-        if (matcher.matches(pair.getFirst()))
-          MapUtils.incr(map, pair.getFirst(), factor * pair.getSecond());
+    for (int i = 0; i < numUnindexed; i++) {
+      if (matcher.matches(unindexedFeatures[i]))
+        MapUtils.incr(map, unindexedFeatures[i], factor * unindexedValues[i]);
     }
     if (denseFeatures != null) {
       for (int i = 0; i < denseFeatures.length; ++i)
@@ -166,15 +192,12 @@ public class FeatureVector {
   // returns a feature vector where all features are prefixed
   public FeatureVector addPrefix(String prefix) {
     FeatureVector res = new FeatureVector();
-    if (indicatorFeatures != null) {
-      for (String feature : indicatorFeatures)
-        res.add(prefix + feature);
-    }
-    if (generalFeatures != null) {
-      for (Pair<String, Double> pair : generalFeatures) {
-        res.add(prefix + pair.getFirst(), pair.getSecond());
-      }
+    if (features != null) {
+      for (int i = 0; i < features.size(); i++)
+        res.add(prefix + FeatureIndex.global.getFeature(features.getId(i)), features.getValue(i));
     }
+    for (int i = 0; i < numUnindexed; i++)
+      res.add(prefix + unindexedFeatures[i], unindexedValues[i]);
     return res;
   }
 
@@ -282,10 +305,9 @@ public class FeatureVector {
   }
 
   public void clear() {
-    if (indicatorFeatures != null)
-      indicatorFeatures.clear();
-    if (generalFeatures != null)
-      generalFeatures.clear();
+    if (features != null)
+      features.clear();
+    numUnindexed = 0;
     denseFeatures = null;
   }
 }
@@ -323,7 +323,13 @@ public class Grammar {
 
   // Add a rule to the grammar.
   public synchronized void addRule(Rule rule, List<Boolean> isOptionals) {
-    rules.addAll(binarizeRule(rule, isOptionals));
+    for (Rule binarized : binarizeRule(rule, isOptionals)) {
+      rules.add(binarized);
+      // Intern the categories, so that charts can index them by id
+      binarized.getLhsId();
+      for (String item : binarized.rhs)
+        if (Rule.isCat(item)) CategoryIndex.global.getId(item);
+    }
   }
 
   private void collectValidTags(LispTree tree) {
@@ -1,6 +1,7 @@
 package edu.stanford.nlp.sempre;
 
 import com.google.common.base.Joiner;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Maps;
 import fig.basic.*;
 import fig.exec.Execution;
@@ -10,6 +11,10 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * The main learning loop.  Goes over a dataset multiple times, calling the
@@ -51,6 +56,21 @@ public class Learner {
 
     @Option(gloss = "Number of threads to parallelize")
     public int numParallelThreads = 1;
+    // deterministic and hogwild with maxStaleness make a thread wait for the updates of
+    // earlier examples, so they depend on fig's Parallelizer handing out the examples in
+    // index order.  If a thread could get example i before an earlier one was handed out,
+    // all threads could end up waiting.
+    @Option(gloss = "How parallel threads update the parameters: " +
+        "locked (one update at a time), hogwild (lock-free, per-feature striped updates), or " +
+        "deterministic (mini-batches of batchSize, summed in example order: same result as one thread; " +
+        "relies on examples being handed out in order)")
+    public String parallelUpdate = "locked";
+    @Option(gloss = "With parallelUpdate=hogwild, an example is only parsed once the updates of " +
+        "all but this many earlier examples have been applied (-1: no bound; relies on examples being handed out in order)")
+    public int maxStaleness = -1;
+    @Option(gloss = "With numParallelThreads = 1, parse the examples of each mini-batch (batchSize) " +
+        "with this many threads and apply their summed gradient once per batch")
+    public int batchThreads = 1;
   }
   public static Options opts = new Options();
 
@@ -171,6 +191,7 @@ public class Learner {
         "Processing %s: %s examples", prefix, examples.size());
     LogInfo.begin_track("Examples");
 
+    long startTime = System.nanoTime();
     if (opts.numParallelThreads > 1) {
       // Parallelize!
       Parallelizer<Example> paral = new Parallelizer<>(opts.numParallelThreads);
@@ -180,6 +201,9 @@ public class Learner {
       paral.process(examples, processor);
       LogInfo.end_threads();
 
+    } else if (opts.batchThreads > 1 && !opts.checkGradient) {
+      processBatchesInParallel(iter, group, prefix, examples, computeExpectedCounts, evaluation);
+
     } else {
       // Original code (single-threaded)
 
@@ -235,6 +259,10 @@ public class Learner {
 
     }
 
+    double seconds = (System.nanoTime() - startTime) / 1e9;
+    LogInfo.logs("%s: %.2f examples/second (%d threads)", prefix, examples.size() / seconds, opts.numParallelThreads);
+    Execution.putOutput(prefix + ".examplesPerSecond", examples.size() / seconds);
+
     params.finalizeWeights();
     if (opts.sortOnFeedback && computeExpectedCounts)
       sortOnFeedback();
@@ -254,7 +282,7 @@ public class Learner {
       LogInfo.begin_track("feature=%s", feature);
       double computedGradient = state.expectedCounts.get(feature);
       Params perturbedParams = this.params.copyParams();
-      perturbedParams.getWeights().put(feature, perturbedParams.getWeight(feature) + eps);
+      perturbedParams.setWeight(feature, perturbedParams.getWeight(feature) + eps);
       ParserState perturbedState = parseExample(perturbedParams, ex, true);
       double checkedGradient = (perturbedState.objectiveValue - state.objectiveValue) / eps;
       LogInfo.logs("Learner.checkGradient(): weight=%s, pertWeight=%s, obj=%s, pertObj=%s, feature=%s, computed=%s, checked=%s, diff=%s",
@@ -278,6 +306,99 @@ public class Learner {
     }
   }
 
+  /**
+   * Data-parallel mini-batches: the examples of a batch are parsed by
+   * batchThreads threads against the same parameters.  Their gradients are
+   * summed with a tree reduction (in a fixed order, so the sum does not
+   * depend on thread timing) and applied once per batch.  Everything else
+   * (evaluation, logging, feedback) then goes over the examples in order.
+   */
+  private void processBatchesInParallel(int iter, String group, String prefix,
+      List<Example> examples, boolean computeExpectedCounts, Evaluation evaluation) {
+    // Batches only matter for the updates; otherwise just keep the threads busy
+    int batchSize = computeExpectedCounts ? Math.max(1, opts.batchSize) : Math.max(opts.batchSize, opts.batchThreads);
+    ExecutorService executor = Executors.newFixedThreadPool(opts.batchThreads);
+    try {
+      for (int start = 0; start < examples.size(); start += batchSize) {
+        List<Example> batch = examples.subList(start, Math.min(start + batchSize, examples.size()));
+
+        LogInfo.begin_threads();
+        List<Future<SparseVector>> futures = new ArrayList<>();
+        for (Example ex : batch) {
+          futures.add(executor.submit(() -> {
+            ParserState state = parseExample(params, ex, computeExpectedCounts);
+            if (!computeExpectedCounts) return null;
+            SparseVector gradient = SparseVector.fromFeatureMap(state.expectedCounts);
+            gradient.compact();
+            return gradient;
+          }));
+        }
+        SparseVector[] gradients = new SparseVector[batch.size()];
+        for (int i = 0; i < gradients.length; i++)
+          gradients[i] = getFuture(futures.get(i));
+        LogInfo.end_threads();
+
+        if (computeExpectedCounts)
+          updateWeights(reduceGradients(gradients, executor));
+
+        for (int i = 0; i < batch.size(); i++) {
+          int e = start + i;
+          Example ex = batch.get(i);
+          LogInfo.begin_track_printAll(
+              "%s: example %s/%s: %s", prefix, e, examples.size(), ex.id);
+          ex.log();
+          Execution.putOutput("example", e);
+
+          LogInfo.logs("Current: %s", ex.evaluation.summary());
+          evaluation.add(ex.evaluation);
+          LogInfo.logs("Cumulative(%s): %s", prefix, evaluation.summary());
+
+          printLearnerEventsIter(ex, iter, group);
+          LogInfo.end_track();
+          if (opts.addFeedback && computeExpectedCounts)
+            addFeedback(ex);
+
+          // Write out examples and predictions
+          if (opts.outputPredDerivations && Builder.opts.parser.equals("FloatingParser")) {
+            ExampleUtils.writeParaphraseSDF(iter, group, ex, opts.outputPredDerivations);
+          }
+
+          // To save memory
+          ex.predDerivations.clear();
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  // Sum |gradients| pairwise, level by level: (0+1)+(2+3), ...
+  private static SparseVector reduceGradients(SparseVector[] gradients, ExecutorService executor) {
+    for (int step = 1; step < gradients.length; step *= 2) {
+      List<Future<SparseVector>> futures = new ArrayList<>();
+      for (int i = 0; i + step < gradients.length; i += 2 * step) {
+        SparseVector a = gradients[i], b = gradients[i + step];
+        futures.add(executor.submit(() -> SparseVector.sum(a, b)));
+      }
+      int k = 0;
+      for (int i = 0; i + step < gradients.length; i += 2 * step)
+        gradients[i] = getFuture(futures.get(k++));
+    }
+    return gradients[0];
+  }
+
+  private static <T> T getFuture(Future<T> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause());
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
   private ParserState parseExample(Params params, Example ex, boolean computeExpectedCounts) {
     StopWatchSet.begin("Parser.parse");
     ParserState res = this.parser.parse(params, ex, computeExpectedCounts);
@@ -285,6 +406,19 @@ public class Learner {
     return res;
   }
 
+  private void updateWeights(SparseVector gradient) {
+    StopWatchSet.begin("Learner.updateWeights");
+    LogInfo.begin_track("Updating learner weights");
+    double sum = 0;
+    for (int i = 0; i < gradient.size(); i++) sum += gradient.getValue(i) * gradient.getValue(i);
+    LogInfo.logs("L2 norm: %s", Math.sqrt(sum));
+    params.update(gradient);
+    if (opts.verbose >= 2)
+      params.log();
+    LogInfo.end_track();
+    StopWatchSet.end();
+  }
+
   private void updateWeights(Map<String, Double> counts) {
     StopWatchSet.begin("Learner.updateWeights");
     LogInfo.begin_track("Updating learner weights");
@@ -23,12 +23,27 @@ public class LearnerParallelProcessor implements Parallelizer.Processor<Example>
   private Params params;         // this is common to threads and should be synchronized
   private Evaluation evaluation; // this is common to threads and should be synchronized
 
+  // Learner.opts.parallelUpdate: locked, hogwild or deterministic
+  private final String updateMode;
+  // Guards the fields below; threads wait on it for earlier updates
+  private final Object updateLock = new Object();
+  // hogwild: number of examples whose update has been applied
+  private int numApplied = 0;
+  // deterministic: number of mini-batches applied, and gradients of examples in later batches
+  private int numAppliedBatches = 0;
+  private final Map<Integer, Map<String, Double>> pendingCounts = new HashMap<>();
+
   public LearnerParallelProcessor(Parser parser, Params params, String prefix, boolean computeExpectedCounts, Evaluation evaluation) {
     this.prefix = prefix;
     this.parser = parser;
     this.computeExpectedCounts = computeExpectedCounts;
     this.params = params;
     this.evaluation = evaluation;
+    this.updateMode = Learner.opts.parallelUpdate;
+    if (!updateMode.equals("locked") && !updateMode.equals("hogwild") && !updateMode.equals("deterministic"))
+      throw new RuntimeException("Unknown parallelUpdate: " + updateMode);
+    if (updateMode.equals("hogwild") && !"none".equals(Params.opts.l1Reg))
+      LogInfo.logs("L1 regularization goes over all weights: hogwild updates will be locked");
   }
 
   @Override
@@ -38,28 +53,33 @@ public class LearnerParallelProcessor implements Parallelizer.Processor<Example>
     ex.log();
     Execution.putOutput("example", i);
 
-    StopWatchSet.begin("Parser.parse");
-    ParserState state = parser.parse(params, ex, computeExpectedCounts);
-    StopWatchSet.end();
-
-    if (computeExpectedCounts) {
-      Map<String, Double> counts = new HashMap<>();
-      SempreUtils.addToDoubleMap(counts, state.expectedCounts);
-
-      // Gathered enough examples, update parameters
-      StopWatchSet.begin("Learner.updateWeights");
-      LogInfo.begin_track("Updating learner weights");
-      if (Learner.opts.verbose >= 2)
-        SempreUtils.logMap(counts, "gradient");
-      double sum = 0;
-      for (double v : counts.values()) sum += v * v;
-      LogInfo.logs("L2 norm: %s", Math.sqrt(sum));
-      synchronized (params) {
-        params.update(counts);
-      }
-      counts.clear();
-      LogInfo.end_track();
+    Map<String, Double> counts = new HashMap<>();
+    boolean parsed = false;
+    try {
+      if (computeExpectedCounts)
+        waitForUpdates(i);
+      StopWatchSet.begin("Parser.parse");
+      ParserState state = parser.parse(params, ex, computeExpectedCounts);
       StopWatchSet.end();
+      if (computeExpectedCounts)
+        SempreUtils.addToDoubleMap(counts, state.expectedCounts);
+      parsed = true;
+    } finally {
+      // In hogwild and deterministic modes, other threads may be waiting for this update,
+      // so it is applied (possibly empty) even on failure.  Locked updates are independent,
+      // and an empty one would still count as an update (and change the step size).
+      if (computeExpectedCounts && (parsed || !updateMode.equals("locked"))) {
+        StopWatchSet.begin("Learner.updateWeights");
+        LogInfo.begin_track("Updating learner weights");
+        if (Learner.opts.verbose >= 2)
+          SempreUtils.logMap(counts, "gradient");
+        double sum = 0;
+        for (double v : counts.values()) sum += v * v;
+        LogInfo.logs("L2 norm: %s", Math.sqrt(sum));
+        updateWeights(i, n, counts);
+        LogInfo.end_track();
+        StopWatchSet.end();
+      }
     }
 
     LogInfo.logs("Current: %s", ex.evaluation.summary());
@@ -74,4 +94,61 @@ public class LearnerParallelProcessor implements Parallelizer.Processor<Example>
     ex.clean();
   }
 
+  // Wait until the parameters that example |i| should be parsed with are ready.
+  // This relies on examples being handed out to the threads in order.
+  private void waitForUpdates(int i) {
+    synchronized (updateLock) {
+      try {
+        if (updateMode.equals("hogwild") && Learner.opts.maxStaleness >= 0) {
+          while (numApplied < i - Learner.opts.maxStaleness)
+            updateLock.wait();
+        } else if (updateMode.equals("deterministic")) {
+          while (numAppliedBatches < i / Math.max(1, Learner.opts.batchSize))
+            updateLock.wait();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  private void updateWeights(int i, int n, Map<String, Double> counts) {
+    if (updateMode.equals("hogwild")) {
+      params.updateAsync(SparseVector.fromFeatureMap(counts));
+      synchronized (updateLock) {
+        numApplied++;
+        updateLock.notifyAll();
+      }
+    } else if (updateMode.equals("deterministic")) {
+      synchronized (updateLock) {
+        pendingCounts.put(i, counts);
+        applyCompleteBatches(n);
+      }
+    } else {
+      synchronized (params) {
+        params.update(counts);
+      }
+    }
+  }
+
+  // Apply the next mini-batches whose examples are all done.  The gradient of
+  // a batch is summed in example order, so the result does not depend on
+  // which thread finished first.
+  private void applyCompleteBatches(int n) {
+    int batchSize = Math.max(1, Learner.opts.batchSize);
+    while (numAppliedBatches * batchSize < n) {
+      int start = numAppliedBatches * batchSize;
+      int end = Math.min(start + batchSize, n);
+      for (int j = start; j < end; j++)
+        if (!pendingCounts.containsKey(j)) return;
+      Map<String, Double> batchCounts = new HashMap<>();
+      for (int j = start; j < end; j++)
+        SempreUtils.addToDoubleMap(batchCounts, pendingCounts.remove(j));
+      params.update(batchCounts);
+      numAppliedBatches++;
+      updateLock.notifyAll();
+    }
+  }
+
 }
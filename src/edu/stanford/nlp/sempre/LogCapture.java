@@ -0,0 +1,71 @@
+package edu.stanford.nlp.sempre;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import fig.basic.LogInfo;
+
+/**
+ * Captures LogInfo output per thread, so that concurrent queries in Master
+ * each get their own response lines.
+ *
+ * Installs itself once as the LogInfo file output.  Output of a thread between
+ * begin() and end() goes to that thread's buffer; output of other threads goes
+ * to the file output that was there before (if any).
+ */
+public class LogCapture extends Writer {
+  private static final ThreadLocal<Deque<StringWriter>> buffers = ThreadLocal.withInitial(ArrayDeque::new);
+  private static LogCapture installed;
+
+  private final PrintWriter fallback;
+
+  private LogCapture(PrintWriter fallback) {
+    this.fallback = fallback;
+  }
+
+  private static synchronized void install() {
+    if (installed != null) return;
+    installed = new LogCapture(LogInfo.getFileOut());
+    LogInfo.setFileOut(new PrintWriter(installed, true));
+  }
+
+  // Start capturing the output of the current thread (calls can be nested).
+  public static void begin() {
+    install();
+    buffers.get().push(new StringWriter());
+  }
+
+  // Stop capturing and return the lines captured since the matching begin().
+  public static List<String> end() {
+    StringWriter buffer = buffers.get().pop();
+    List<String> lines = new ArrayList<>();
+    for (String line : buffer.toString().split("\n"))
+      lines.add(line);
+    return lines;
+  }
+
+  @Override
+  public void write(char[] cbuf, int off, int len) {
+    StringWriter buffer = buffers.get().peek();
+    if (buffer != null)
+      buffer.write(cbuf, off, len);
+    else if (fallback != null)
+      fallback.write(cbuf, off, len);
+  }
+
+  @Override
+  public void flush() {
+    if (fallback != null) fallback.flush();
+  }
+
+  @Override
+  public void close() {
+    // The fallback is owned by whoever installed it
+    flush();
+  }
+}
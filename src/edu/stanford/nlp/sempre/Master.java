@@ -8,9 +8,10 @@ import jline.console.ConsoleReader;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.io.StringWriter;
 import java.lang.reflect.Field;
 import java.util.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * A Master manages multiple sessions. Currently, they all share the same model,
@@ -86,7 +87,11 @@ public class Master {
 
   protected Builder builder;
   protected Learner learner;
-  protected HashMap<String, Session> sessions = new LinkedHashMap<>();
+  protected HashMap<String, Session> sessions = new LinkedHashMap<>();  // Guarded by itself
+  // Queries on different sessions run concurrently.  Parsing holds the read lock;
+  // anything that changes the grammar, parser or parameters holds the write lock.
+  protected final ReentrantReadWriteLock modelLock = new ReentrantReadWriteLock();
+  private final Object logPathLock = new Object();
 
   public Master(Builder builder) {
     this.builder = builder;
@@ -98,17 +103,21 @@ public class Master {
   // Return the unique session identified by session id |id|.
   // Create a new session if one doesn't exist.
   public Session getSession(String id) {
-    Session session = sessions.get(id);
-    if (session == null) {
-      session = new Session(id);
-      for (String path : opts.scriptPaths)
-        processScript(session, path);
-      for (String command : opts.commands)
-        processQuery(session, command);
-      if (id != null)
-        sessions.put(id, session);
+    synchronized (sessions) {
+      Session session = sessions.get(id);
+      if (session != null) return session;
+    }
+    // Run the startup commands without holding the lock
+    Session session = new Session(id);
+    for (String path : opts.scriptPaths)
+      processScript(session, path);
+    for (String command : opts.commands)
+      processQuery(session, command);
+    if (id == null) return session;
+    synchronized (sessions) {
+      Session existing = sessions.putIfAbsent(id, session);
+      return existing != null ? existing : session;
     }
-    return session;
   }
 
   protected void printHelp() {
@@ -170,42 +179,39 @@ public class Master {
   }
 
   // Process user's input |line|
-  // Currently, synchronize a very crude level.
-  // In the future, refine this.
-  // Currently need the synchronization because of writing to stdout.
-  public synchronized Response processQuery(Session session, String line) {
+  // Queries on the same session are serialized; see modelLock for the shared state.
+  public Response processQuery(Session session, String line) {
     line = line.trim();
     Response response = new Response();
 
-    // Capture log output and put it into response.
-    // Hack: modifying a static variable to capture the logging.
-    // Make sure we're synchronized!
-    StringWriter stringOut = new StringWriter();
-    LogInfo.setFileOut(new PrintWriter(stringOut));
-
-    if (line.startsWith("("))
-      handleCommand(session, line, response);
-    else
-      handleUtterance(session, line, response);
-
-    // Clean up
-    for (String outLine : stringOut.toString().split("\n"))
-      response.lines.add(outLine);
-    LogInfo.setFileOut(null);
+    // Capture the log output of this thread and put it into response.
+    LogCapture.begin();
+    try {
+      synchronized (session) {
+        if (line.startsWith("("))
+          handleCommand(session, line, response);
+        else
+          handleUtterance(session, line, response);
+      }
+    } finally {
+      response.lines.addAll(LogCapture.end());
+    }
 
     // Log interaction to disk
     if (!Strings.isNullOrEmpty(opts.logPath)) {
-      PrintWriter out = IOUtils.openOutAppendHard(opts.logPath);
-      out.println(
-          Joiner.on("\t").join(
-              Lists.newArrayList(
-                  "date=" + new Date().toString(),
-                  "sessionId=" + session.id,
-                  "remote=" + session.remoteHost,
-                  "format=" + session.format,
-                  "query=" + line,
-                  "response=" + summaryString(response))));
-      out.close();
+      synchronized (logPathLock) {
+        PrintWriter out = IOUtils.openOutAppendHard(opts.logPath);
+        out.println(
+            Joiner.on("\t").join(
+                Lists.newArrayList(
+                    "date=" + new Date().toString(),
+                    "sessionId=" + session.id,
+                    "remote=" + session.remoteHost,
+                    "format=" + session.format,
+                    "query=" + line,
+                    "response=" + summaryString(response))));
+        out.close();
+      }
     }
 
     return response;
@@ -232,7 +238,12 @@ public class Master {
     ex.preprocess();
 
     // Parse!
-    builder.parser.parse(builder.params, ex, false);
+    modelLock.readLock().lock();
+    try {
+      builder.parser.parse(builder.params, ex, false);
+    } finally {
+      modelLock.readLock().unlock();
+    }
 
     response.ex = ex;
     ex.logWithoutContext();
@@ -265,19 +276,48 @@ public class Master {
     }
   }
 
+  // Commands that change the grammar, parser, parameters or options
+  private static final Set<String> modelCommands = new HashSet<>(
+      Arrays.asList("reload", "set", "accept", "a", "answer", "rule", "def"));
+
   private void handleCommand(Session session, String line, Response response) {
     LispTree tree = LispTree.proto.parseFromString(line);
-    tree = builder.grammar.applyMacros(tree);
+    modelLock.readLock().lock();
+    try {
+      tree = builder.grammar.applyMacros(tree);
+    } finally {
+      modelLock.readLock().unlock();
+    }
+
+    // Only commands that change the model run exclusively; the others can run alongside parsing
+    String command = tree.child(0).value;
+    boolean changesModel = modelCommands.contains(command);
+    Lock lock = changesModel ? modelLock.writeLock() : modelLock.readLock();
+    lock.lock();
+    try {
+      handleCommand(session, tree, response);
+    } finally {
+      if (changesModel)
+        modelChanged();
+      lock.unlock();
+    }
+  }
+
+  // Called with the model write lock held, after a command that may have changed the model.
+  protected void modelChanged() { }
 
+  private void handleCommand(Session session, LispTree tree, Response response) {
     String command = tree.child(0).value;
 
     if (command == null || command.equals("help")) {
       printHelp();
     } else if (command.equals("status")) {
-      LogInfo.begin_track("%d sessions", sessions.size());
-      for (Session otherSession : sessions.values())
-        LogInfo.log(otherSession + (session == otherSession ? " *" : ""));
-      LogInfo.end_track();
+      synchronized (sessions) {
+        LogInfo.begin_track("%d sessions", sessions.size());
+        for (Session otherSession : sessions.values())
+          LogInfo.log(otherSession + (session == otherSession ? " *" : ""));
+        LogInfo.end_track();
+      }
       StopWatchSet.logStats();
     } else if (command.equals("reload")) {
       builder.build();
@@ -9,10 +9,12 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Params contains the parameters of the model. Currently consists of a map from
- * features to weights.
+ * features to weights, stored in primitive arrays indexed by feature id.
  *
  * @author Percy Liang
  */
@@ -49,103 +51,216 @@ public class Params {
   }
   private L1Reg l1Reg = parseReg(opts.l1Reg);
 
+  // Per-feature state, indexed by feature id (FeatureIndex.global).
+  // Missing entries are NaN (-1 for l1UpdateTimes), which tells a feature
+  // without a weight apart from a weight of 0.
+  // Writes happen under the lock, or under the stripe lock of the feature
+  // (updateAsync).  The arrays only grow, while holding the lock and all the
+  // stripes, and a grown array is published through the volatile field, so
+  // getWeight can read without any lock.
+
   // Discriminative weights
-  private Map<String, Double> weights = new HashMap<>();
+  private volatile double[] weights = newArray(0, Double.NaN);
+  private final AtomicInteger numWeights = new AtomicInteger();
 
   // For AdaGrad
-  Map<String, Double> sumSquaredGradients = new HashMap<>();
+  private double[] sumSquaredGradients = newArray(0, Double.NaN);
 
   // For dual averaging
-  Map<String, Double> sumGradients = new HashMap<>();
+  private double[] sumGradients = newArray(0, Double.NaN);
 
   // Number of stochastic updates we've made so far (for determining step size).
-  int numUpdates;
+  final AtomicInteger numUpdates = new AtomicInteger();
 
   // for lazy l1-reg update
-  Map<String, Integer> l1UpdateTimeMap = new HashMap<>();
+  private int[] l1UpdateTimes = new int[0];
+
+  // For updateAsync: feature f is updated under stripes[f % NUM_STRIPES]
+  private static final int NUM_STRIPES = 64;
+  private final ReentrantLock[] stripes = new ReentrantLock[NUM_STRIPES];
+  {
+    for (int i = 0; i < NUM_STRIPES; i++)
+      stripes[i] = new ReentrantLock();
+  }
+
+  private static double[] newArray(int size, double fill) {
+    double[] array = new double[size];
+    Arrays.fill(array, fill);
+    return array;
+  }
+
+  private static double[] grow(double[] array, int size) {
+    int oldSize = array.length;
+    array = Arrays.copyOf(array, size);
+    Arrays.fill(array, oldSize, size, Double.NaN);
+    return array;
+  }
+
+  // Make room for |id| in all the arrays.  Called with the lock held.
+  private void ensureCapacity(int id) {
+    if (id < weights.length) return;
+    for (ReentrantLock stripe : stripes)
+      stripe.lock();
+    try {
+      int size = Math.max(Math.max(id + 1, 2 * weights.length), FeatureIndex.global.size());
+      sumSquaredGradients = grow(sumSquaredGradients, size);
+      sumGradients = grow(sumGradients, size);
+      int oldSize = l1UpdateTimes.length;
+      l1UpdateTimes = Arrays.copyOf(l1UpdateTimes, size);
+      Arrays.fill(l1UpdateTimes, oldSize, size, -1);
+      weights = grow(weights, size);
+    } finally {
+      for (ReentrantLock stripe : stripes)
+        stripe.unlock();
+    }
+  }
+
+  // Stored weight of |id|, or NaN if there is none.
+  private double storedWeight(int id) {
+    double[] w = weights;
+    return id >= 0 && id < w.length ? w[id] : Double.NaN;
+  }
+
+  private void setStoredWeight(int id, double value) {
+    ensureCapacity(id);
+    if (Double.isNaN(weights[id])) numWeights.incrementAndGet();
+    weights[id] = value;
+  }
+
+  private void incrStoredWeight(int id, double value) {
+    double current = storedWeight(id);
+    setStoredWeight(id, (Double.isNaN(current) ? 0 : current) + value);
+  }
+
+  private void removeStoredWeight(int id) {
+    if (Double.isNaN(storedWeight(id))) return;
+    weights[id] = Double.NaN;
+    numWeights.decrementAndGet();
+  }
 
   // Initialize the weights
-  public void init(List<Pair<String, Double>> initialization) {
-    if (!weights.isEmpty())
+  public synchronized void init(List<Pair<String, Double>> initialization) {
+    if (numWeights.get() > 0)
       throw new RuntimeException("Initialization is not legal when there are non-zero weights");
     for (Pair<String, Double> pair: initialization)
-      weights.put(pair.getFirst(), pair.getSecond());
+      setWeight(pair.getFirst(), pair.getSecond());
   }
 
   // Read parameters from |path|.
   public void read(String path) {
-    LogInfo.begin_track("Reading parameters from %s", path);
-    try {
-      BufferedReader in = IOUtils.openIn(path);
-      String line;
-      while ((line = in.readLine()) != null) {
-        String[] pair = Lists.newArrayList(Splitter.on('\t').split(line)).toArray(new String[2]);
-        weights.put(pair[0], Double.parseDouble(pair[1]));
-      }
-      in.close();
-    } catch (IOException e) {
-      throw new RuntimeException(e);
-    }
-    LogInfo.logs("Read %s weights", weights.size());
-    LogInfo.end_track();
+    read(path, null);
   }
 
-  // Read parameters from |path|.
-  public void read(String path, String prefix) {
+  // Read parameters from |path|, also under the feature names prefixed by |prefix| (if not null).
+  public synchronized void read(String path, String prefix) {
     LogInfo.begin_track("Reading parameters from %s", path);
     try {
       BufferedReader in = IOUtils.openIn(path);
       String line;
       while ((line = in.readLine()) != null) {
         String[] pair = Lists.newArrayList(Splitter.on('\t').split(line)).toArray(new String[2]);
-        weights.put(pair[0], Double.parseDouble(pair[1]));
-        weights.put(prefix + pair[0], Double.parseDouble(pair[1]));
+        setWeight(pair[0], Double.parseDouble(pair[1]));
+        if (prefix != null)
+          setWeight(prefix + pair[0], Double.parseDouble(pair[1]));
       }
       in.close();
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
-    LogInfo.logs("Read %s weights", weights.size());
+    LogInfo.logs("Read %s weights", numWeights.get());
     LogInfo.end_track();
   }
 
   // Update weights by adding |gradient| (modified appropriately with step size).
   public synchronized void update(Map<String, Double> gradient) {
     for (Map.Entry<String, Double> entry : gradient.entrySet()) {
-      String f = entry.getKey();
-      double g = entry.getValue();
-      if (g * g == 0) continue;  // In order to not divide by zero
-
-      if (l1Reg == L1Reg.LAZY) lazyL1Update(f);
-      double stepSize = computeStepSize(f, g);
-
-      if (opts.dualAveraging) {
-        if (!opts.adaptiveStepSize && opts.stepSizeReduction != 0)
-          throw new RuntimeException("Dual averaging not supported when " +
-                  "step-size changes across iterations for " +
-                  "features for which the gradient is zero");
-        MapUtils.incr(sumGradients, f, g);
-        MapUtils.set(weights, f, stepSize * sumGradients.get(f));
-      } else {
-        if (stepSize * g == Double.POSITIVE_INFINITY || stepSize * g == Double.NEGATIVE_INFINITY) {
-          LogInfo.logs("WEIRD FEATURE UPDATE: feature=%s, currentWeight=%s, stepSize=%s, gradient=%s", f, getWeight(f), stepSize, g);
-          throw new RuntimeException("Gradient absolute value is too large or too small");
+      int id = FeatureIndex.global.getId(entry.getKey());
+      if (id >= 0)
+        update(id, entry.getValue());
+    }
+    finishUpdate();
+  }
+
+  // Same as update(Map), with the gradient over feature ids.  Merges duplicate ids of |gradient|.
+  public synchronized void update(SparseVector gradient) {
+    gradient.compact();
+    for (int i = 0; i < gradient.size(); i++)
+      update(gradient.getId(i), gradient.getValue(i));
+    finishUpdate();
+  }
+
+  /**
+   * Hogwild-style version of update(SparseVector) for parallel training:
+   * does not take the lock, and updates each feature under its stripe lock,
+   * so concurrent updates only wait for each other on features in the same stripe.
+   * The step size of a feature only depends on its own AdaGrad sum, so this
+   * is the same computation as update, with updates of different threads interleaved.
+   * L1 regularization goes over all the weights, so it falls back to update.
+   */
+  public void updateAsync(SparseVector gradient) {
+    if (l1Reg != L1Reg.NONE) {
+      update(gradient);
+      return;
+    }
+    gradient.compact();
+    for (int i = 0; i < gradient.size(); i++) {
+      int f = gradient.getId(i);
+      ReentrantLock stripe = stripes[f % NUM_STRIPES];
+      while (true) {
+        stripe.lock();
+        try {
+          if (f < weights.length) {
+            update(f, gradient.getValue(i));
+            break;
+          }
+        } finally {
+          stripe.unlock();
+        }
+        synchronized (this) {
+          ensureCapacity(f);
         }
-        MapUtils.incr(weights, f, stepSize * g);
-        if (l1Reg == L1Reg.LAZY) l1UpdateTimeMap.put(f, numUpdates);
       }
     }
+    numUpdates.incrementAndGet();
+  }
+
+  private void update(int f, double g) {
+    if (g * g == 0) return;  // In order to not divide by zero
+    ensureCapacity(f);
+
+    if (l1Reg == L1Reg.LAZY) lazyL1Update(f);
+    double stepSize = computeStepSize(f, g);
+
+    if (opts.dualAveraging) {
+      if (!opts.adaptiveStepSize && opts.stepSizeReduction != 0)
+        throw new RuntimeException("Dual averaging not supported when " +
+                "step-size changes across iterations for " +
+                "features for which the gradient is zero");
+      sumGradients[f] = (Double.isNaN(sumGradients[f]) ? 0 : sumGradients[f]) + g;
+      setStoredWeight(f, stepSize * sumGradients[f]);
+    } else {
+      if (stepSize * g == Double.POSITIVE_INFINITY || stepSize * g == Double.NEGATIVE_INFINITY) {
+        LogInfo.logs("WEIRD FEATURE UPDATE: feature=%s, currentWeight=%s, stepSize=%s, gradient=%s",
+            FeatureIndex.global.getFeature(f), getWeight(f), stepSize, g);
+        throw new RuntimeException("Gradient absolute value is too large or too small");
+      }
+      incrStoredWeight(f, stepSize * g);
+      if (l1Reg == L1Reg.LAZY) l1UpdateTimes[f] = numUpdates.get();
+    }
+  }
+
+  private void finishUpdate() {
     // non lazy implementation goes over all weights
     if (l1Reg == L1Reg.NONLAZY) {
-      Set<String> features = new HashSet<String>(weights.keySet());
-      for (String f : features) {
+      for (int f = 0; f < weights.length; f++) {
+        if (Double.isNaN(weights[f])) continue;
         double stepSize = computeStepSize(f, 0d); // no update for gradient here
-        double update = opts.l1RegCoeff * -Math.signum(MapUtils.getDouble(weights, f, opts.defaultWeight));
+        double update = opts.l1RegCoeff * -Math.signum(weights[f]);
         clipUpdate(f, stepSize * update);
       }
     }
-    numUpdates++;
-    if (l1Reg == L1Reg.LAZY && opts.lazyL1FullUpdateFreq > 0 && numUpdates % opts.lazyL1FullUpdateFreq == 0) {
+    int n = numUpdates.incrementAndGet();
+    if (l1Reg == L1Reg.LAZY && opts.lazyL1FullUpdateFreq > 0 && n % opts.lazyL1FullUpdateFreq == 0) {
       LogInfo.begin_track("Fully apply L1 regularization.");
       finalizeWeights();
       System.gc();
@@ -153,71 +268,106 @@ public class Params {
     }
   }
 
-  private double computeStepSize(String feature, double gradient) {
+  private double computeStepSize(int feature, double gradient) {
     if (opts.adaptiveStepSize) {
-      MapUtils.incr(sumSquaredGradients, feature, gradient * gradient);
+      double sum = sumSquaredGradients[feature];
+      sum = (Double.isNaN(sum) ? 0 : sum) + gradient * gradient;
+      sumSquaredGradients[feature] = sum;
       // ugly - adding one to the denominator when using l1 reg.
       if (l1Reg != L1Reg.NONE)
-        return opts.initStepSize / (Math.sqrt(sumSquaredGradients.get(feature) + 1));
+        return opts.initStepSize / (Math.sqrt(sum + 1));
       else
-        return opts.initStepSize / Math.sqrt(sumSquaredGradients.get(feature));
+        return opts.initStepSize / Math.sqrt(sum);
     } else {
-      return opts.initStepSize / Math.pow(numUpdates, opts.stepSizeReduction);
+      return opts.initStepSize / Math.pow(numUpdates.get(), opts.stepSizeReduction);
     }
   }
 
   /*
    * If the update changes the sign, remove the feature
    */
-  private void clipUpdate(String f, double update) {
-    double currWeight = MapUtils.getDouble(weights, f, 0);
-    if (currWeight == 0)
+  private void clipUpdate(int f, double update) {
+    double currWeight = storedWeight(f);
+    if (Double.isNaN(currWeight) || currWeight == 0)
       return;
 
     if (currWeight * (currWeight + update) < 0.0)  {
-      weights.remove(f);
+      removeStoredWeight(f);
     } else {
-      MapUtils.incr(weights, f, update);
+      incrStoredWeight(f, update);
     }
   }
 
-  private void lazyL1Update(String f) {
-    if (MapUtils.getDouble(weights, f, 0.0) == 0) return;
+  private void lazyL1Update(int f) {
+    double weight = storedWeight(f);
+    if (Double.isNaN(weight) || weight == 0) return;
     // For pre-initialized weights, which have no updates yet
-    if (sumSquaredGradients.get(f) == null || l1UpdateTimeMap.get(f) == null) {
-      l1UpdateTimeMap.put(f, numUpdates);
-      sumSquaredGradients.put(f, 0.0);
+    if (Double.isNaN(sumSquaredGradients[f]) || l1UpdateTimes[f] < 0) {
+      l1UpdateTimes[f] = numUpdates.get();
+      sumSquaredGradients[f] = 0;
       return;
     }
-    int numOfIter = numUpdates - MapUtils.get(l1UpdateTimeMap, f, 0);
+    int numOfIter = numUpdates.get() - l1UpdateTimes[f];
     if (numOfIter == 0) return;
-    if (numOfIter < 0) throw new RuntimeException("l1UpdateTimeMap is out of sync.");
+    if (numOfIter < 0) throw new RuntimeException("l1UpdateTimes is out of sync.");
 
-    double stepSize = (numOfIter * opts.initStepSize) / (Math.sqrt(sumSquaredGradients.get(f) + 1));
-    double update = -opts.l1RegCoeff * Math.signum(MapUtils.getDouble(weights, f, 0.0));
+    double stepSize = (numOfIter * opts.initStepSize) / (Math.sqrt(sumSquaredGradients[f] + 1));
+    double update = -opts.l1RegCoeff * Math.signum(weight);
     clipUpdate(f, stepSize * update);
-    if (weights.containsKey(f))
-      l1UpdateTimeMap.put(f, numUpdates);
+    if (!Double.isNaN(storedWeight(f)))
+      l1UpdateTimes[f] = numUpdates.get();
     else
-      l1UpdateTimeMap.remove(f);
+      l1UpdateTimes[f] = -1;
   }
 
-  public synchronized double getWeight(String f) {
-    if (l1Reg == L1Reg.LAZY)
-      lazyL1Update(f);
-    if (opts.initWeightsRandomly)
-      return MapUtils.getDouble(weights, f, 2 * opts.initRandom.nextDouble() - 1);
-    else {
-      return MapUtils.getDouble(weights, f, opts.defaultWeight);
+  public double getWeight(String f) {
+    return getWeight(FeatureIndex.global.getIdIfPresent(f));
+  }
+
+  // Weight of the feature with id |featureId| in FeatureIndex.global.
+  // Does not take the lock unless lazy L1 regularization has to catch up.
+  public double getWeight(int featureId) {
+    if (l1Reg == L1Reg.LAZY) {
+      synchronized (this) {
+        lazyL1Update(featureId);
+        return weightOrDefault(featureId);
+      }
     }
+    return weightOrDefault(featureId);
+  }
+
+  private double weightOrDefault(int featureId) {
+    double weight = storedWeight(featureId);
+    if (!Double.isNaN(weight))
+      return weight;
+    if (opts.initWeightsRandomly)
+      return 2 * opts.initRandom.nextDouble() - 1;
+    else
+      return opts.defaultWeight;
+  }
+
+  public synchronized void setWeight(String f, double value) {
+    int id = FeatureIndex.global.getId(f);
+    if (id >= 0)
+      setStoredWeight(id, value);
   }
 
-  public synchronized Map<String, Double> getWeights() { finalizeWeights(); return weights; }
+  // A snapshot of the weights, with L1 regularization applied.
+  public synchronized Map<String, Double> getWeights() { finalizeWeights(); return toMap(); }
+
+  private synchronized Map<String, Double> toMap() {
+    Map<String, Double> map = new HashMap<>();
+    double[] w = weights;
+    for (int f = 0; f < w.length; f++)
+      if (!Double.isNaN(w[f]))
+        map.put(FeatureIndex.global.getFeature(f), w[f]);
+    return map;
+  }
 
   public void write(PrintWriter out) { write(null, out); }
 
   public void write(String prefix, PrintWriter out) {
-    List<Map.Entry<String, Double>> entries = Lists.newArrayList(weights.entrySet());
+    List<Map.Entry<String, Double>> entries = Lists.newArrayList(toMap().entrySet());
     Collections.sort(entries, new ValueComparator<String, Double>(true));
     for (Map.Entry<String, Double> entry : entries) {
       double value = entry.getValue();
@@ -235,7 +385,7 @@ public class Params {
 
   public void log() {
     LogInfo.begin_track("Params");
-    List<Map.Entry<String, Double>> entries = Lists.newArrayList(weights.entrySet());
+    List<Map.Entry<String, Double>> entries = Lists.newArrayList(toMap().entrySet());
     Collections.sort(entries, new ValueComparator<String, Double>(true));
     for (Map.Entry<String, Double> entry : entries) {
       double value = entry.getValue();
@@ -246,16 +396,15 @@ public class Params {
 
   public synchronized void finalizeWeights() {
     if (l1Reg == L1Reg.LAZY) {
-      Set<String> features = new HashSet<>(weights.keySet());
-      for (String f : features)
+      for (int f = 0; f < weights.length; f++)
         lazyL1Update(f);
     }
   }
 
   public Params copyParams()  {
     Params result = new Params();
-    for (String feature : this.getWeights().keySet()) {
-      result.weights.put(feature, this.getWeight(feature));
+    for (Map.Entry<String, Double> entry : this.getWeights().entrySet()) {
+      result.setWeight(entry.getKey(), entry.getValue());
     }
     return result;
   }
@@ -263,24 +412,25 @@ public class Params {
   // copy params starting with prefix and drop the prefix
   public Params copyParamsByPrefix(String prefix)  {
     Params result = new Params();
-    for (String feature : this.getWeights().keySet()) {
+    for (Map.Entry<String, Double> entry : this.getWeights().entrySet()) {
+      String feature = entry.getKey();
       if (feature.startsWith(prefix)) {
         String newFeature = feature.substring(prefix.length());
-        result.weights.put(newFeature, this.getWeight(feature));
+        result.setWeight(newFeature, entry.getValue());
       }
     }
     return result;
   }
 
-  public boolean isEmpty() {
-    return weights.size() == 0;
+  public synchronized boolean isEmpty() {
+    return numWeights.get() == 0;
   }
 
   public Params getRandomWeightParams()  {
     Random rand = new Random();
     Params result = new Params();
     for (String feature : this.getWeights().keySet()) {
-      result.weights.put(feature, 2 * rand.nextDouble() - 1); // between -1 and 1
+      result.setWeight(feature, 2 * rand.nextDouble() - 1); // between -1 and 1
     }
     return result;
   }
@@ -254,6 +254,13 @@ public abstract class ParserState {
   // Ensure that all the logical forms are executed and compatibilities are computed.
   public void ensureExecuted() {
     LogInfo.begin_track("Parser.ensureExecuted");
+    // Execute predicted derivations in parallel first if possible;
+    // the loop below then only computes compatibilities.
+    if (ExecutionStage.isEnabled(parser.executor) && (computeExpectedCounts || !Parser.opts.executeTopFormulaOnly)) {
+      StopWatchSet.begin("ExecutionStage.execute");
+      ExecutionStage.execute(predDerivations, parser.executor, ex.context);
+      StopWatchSet.end();
+    }
     // Execute predicted derivations to get value.
     for (Derivation deriv : predDerivations) {
       deriv.ensureExecuted(parser.executor, ex.context);
@@ -39,6 +39,13 @@ public class Rule {
   }
   private String semRepn = null;
 
+  // Cache the id of the lhs in CategoryIndex.global
+  public int getLhsId() {
+    if (lhsId < 0) lhsId = CategoryIndex.global.getId(lhs);
+    return lhsId;
+  }
+  private int lhsId = -1;
+
   public Rule(String lhs,
               List<String> rhs,
               SemanticFn sem) {
@@ -0,0 +1,141 @@
+package edu.stanford.nlp.sempre;
+
+import java.util.*;
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * A sparse vector over feature ids (see FeatureIndex), stored as parallel
+ * int[] and double[] arrays.
+ *
+ * Entries are kept in the order they are added and an id may appear more
+ * than once; its value is then the sum of its entries.  compact() sorts the
+ * entries by id and merges duplicates.
+ */
+public class SparseVector {
+  private int[] ids;
+  private double[] values;
+  private int size;
+
+  public SparseVector() { this(4); }
+
+  public SparseVector(int capacity) {
+    ids = new int[capacity];
+    values = new double[capacity];
+  }
+
+  // Vector of the features in |map| (by their id in FeatureIndex.global).
+  public static SparseVector fromFeatureMap(Map<String, Double> map) {
+    SparseVector vector = new SparseVector(map.size());
+    for (Map.Entry<String, Double> entry : map.entrySet()) {
+      int id = FeatureIndex.global.getId(entry.getKey());
+      if (id >= 0)
+        vector.add(id, entry.getValue());
+    }
+    return vector;
+  }
+
+  public int size() { return size; }
+  public int getId(int i) { return ids[i]; }
+  public double getValue(int i) { return values[i]; }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity <= ids.length) return;
+    int newCapacity = Math.max(capacity, 2 * ids.length);
+    ids = Arrays.copyOf(ids, newCapacity);
+    values = Arrays.copyOf(values, newCapacity);
+  }
+
+  public void add(int id, double value) {
+    ensureCapacity(size + 1);
+    ids[size] = id;
+    values[size] = value;
+    size++;
+  }
+
+  // Append |scale| times the entries of |that|.
+  public void add(double scale, SparseVector that) {
+    ensureCapacity(size + that.size);
+    System.arraycopy(that.ids, 0, ids, size, that.size);
+    if (scale == 1) {
+      System.arraycopy(that.values, 0, values, size, that.size);
+    } else {
+      for (int i = 0; i < that.size; i++)
+        values[size + i] = scale * that.values[i];
+    }
+    size += that.size;
+  }
+
+  public void scale(double factor) {
+    for (int i = 0; i < size; i++)
+      values[i] *= factor;
+  }
+
+  // Dot product with a weight vector indexed by id (ids beyond its end have weight 0).
+  public double dotProduct(double[] weights) {
+    double sum = 0;
+    for (int i = 0; i < size; i++) {
+      int id = ids[i];
+      if (id < weights.length)
+        sum += weights[id] * values[i];
+    }
+    return sum;
+  }
+
+  public double dotProduct(IntToDoubleFunction weights) {
+    double sum = 0;
+    for (int i = 0; i < size; i++)
+      sum += weights.applyAsDouble(ids[i]) * values[i];
+    return sum;
+  }
+
+  // Sort the entries by id and merge entries with the same id.
+  public void compact() {
+    if (size <= 1) return;
+    boolean sorted = true;
+    for (int i = 1; i < size && sorted; i++)
+      sorted = ids[i - 1] < ids[i];
+    if (sorted) return;
+    long[] order = new long[size];
+    for (int i = 0; i < size; i++)
+      order[i] = ((long) ids[i] << 32) | i;
+    Arrays.sort(order);
+    int[] newIds = new int[size];
+    double[] newValues = new double[size];
+    int n = 0;
+    for (long entry : order) {
+      int i = (int) entry;
+      if (n > 0 && newIds[n - 1] == ids[i]) {
+        newValues[n - 1] += values[i];
+      } else {
+        newIds[n] = ids[i];
+        newValues[n] = values[i];
+        n++;
+      }
+    }
+    ids = newIds;
+    values = newValues;
+    size = n;
+  }
+
+  // Sum of two compacted vectors, merged in one pass (also compacted).
+  public static SparseVector sum(SparseVector a, SparseVector b) {
+    SparseVector result = new SparseVector(a.size + b.size);
+    int i = 0, j = 0;
+    while (i < a.size || j < b.size) {
+      if (j == b.size || (i < a.size && a.ids[i] < b.ids[j])) {
+        result.add(a.ids[i], a.values[i]);
+        i++;
+      } else if (i == a.size || b.ids[j] < a.ids[i]) {
+        result.add(b.ids[j], b.values[j]);
+        j++;
+      } else {
+        result.add(a.ids[i], a.values[i] + b.values[j]);
+        i++;
+        j++;
+      }
+    }
+    return result;
+  }
+
+  public void clear() { size = 0; }
+}
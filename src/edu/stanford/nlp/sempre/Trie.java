@@ -1,6 +1,8 @@
 package edu.stanford.nlp.sempre;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
@@ -15,14 +17,25 @@ import java.util.Set;
 public class Trie {
   public ArrayList<Rule> rules = new ArrayList<>();
   Map<String, Trie> children = new LinkedHashMap<>();
+  // The children for categories again, indexed by id in CategoryIndex.global
+  private Trie[] catChildren = new Trie[0];
   // Set of LHS categories of all rules in this subtree
   public Set<String> cats = new LinkedHashSet<>();
+  // The same categories by id
+  private final BitSet catIds = new BitSet();
 
   public Trie next(String item) { return children.get(item); }
 
+  // Same as next(CategoryIndex.global.getCategory(catId)), without the lookup
+  public Trie nextCat(int catId) { return catId < catChildren.length ? catChildren[catId] : null; }
+
+  // Same as cats.contains(CategoryIndex.global.getCategory(catId))
+  public boolean hasCat(int catId) { return catIds.get(catId); }
+
   public void add(Rule rule) { add(rule, 0); }
   private void add(Rule rule, int i) {
     cats.add(rule.lhs);
+    catIds.set(rule.getLhsId());
 
     if (i == rule.rhs.size()) {
       if (!rules.contains(rule)) // filter exact match
@@ -32,8 +45,15 @@ public class Trie {
 
     String item = rule.rhs.get(i);
     Trie child = children.get(item);
-    if (child == null)
+    if (child == null) {
       children.put(item, child = new Trie());
+      if (Rule.isCat(item)) {
+        int catId = CategoryIndex.global.getId(item);
+        if (catId >= catChildren.length)
+          catChildren = Arrays.copyOf(catChildren, Math.max(catId + 1, CategoryIndex.global.size()));
+        catChildren[catId] = child;
+      }
+    }
     child.add(rule, i + 1);
   }
 }
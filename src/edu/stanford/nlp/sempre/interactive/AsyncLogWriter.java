@@ -0,0 +1,197 @@
+package edu.stanford.nlp.sempre.interactive;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.common.io.CountingOutputStream;
+
+import edu.stanford.nlp.sempre.Json;
+import fig.basic.LogInfo;
+import fig.basic.Option;
+
+/**
+ * Writes the query and response logs of InteractiveServer in the background.
+ *
+ * Request threads only enqueue records on a lock-free queue.  A single writer
+ * thread serializes them to JSON lines and keeps one file open per path.
+ * It flushes once per batch (group commit) and rotates files by size or age.
+ * Files can optionally be written gzipped (with a .gz suffix).
+ */
+public class AsyncLogWriter {
+  public static class Options {
+    @Option(gloss = "How often the writer thread flushes the logs (in milliseconds)")
+    public int flushIntervalMs = 200;
+    @Option(gloss = "Rotate a log file once it exceeds this many bytes on disk (compressed if gzip; 0: never)")
+    public long maxFileBytes = 0;
+    @Option(gloss = "Rotate a log file once it is this many minutes old (0: never)")
+    public int rotateMinutes = 0;
+    @Option(gloss = "Write gzipped logs")
+    public boolean gzip = false;
+  }
+
+  public static Options opts = new Options();
+
+  private static class Record {
+    final String path;
+    final Object value;
+
+    Record(String path, Object value) {
+      this.path = path;
+      this.value = value;
+    }
+  }
+
+  private static class OpenLog {
+    final Writer out;
+    final long openTime = System.nanoTime();
+    // Size of the file on disk: its length when opened plus the (compressed) bytes written since
+    final long initialBytes;
+    final CountingOutputStream written;
+
+    OpenLog(Writer out, long initialBytes, CountingOutputStream written) {
+      this.out = out;
+      this.initialBytes = initialBytes;
+      this.written = written;
+    }
+
+    // Counts what has reached the file, so it lags behind by at most the buffers until the next flush
+    long numBytes() { return initialBytes + written.getCount(); }
+  }
+
+  private static final DateTimeFormatter ROTATE_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+  private final Queue<Record> queue = new ConcurrentLinkedQueue<>();
+  // Only touched by the writer thread
+  private final Map<String, OpenLog> openLogs = new HashMap<>();
+  private final Thread writerThread;
+  private volatile boolean closed = false;
+
+  public AsyncLogWriter() {
+    writerThread = new Thread(this::run, "AsyncLogWriter");
+    writerThread.setDaemon(true);
+    writerThread.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+  }
+
+  /**
+   * Append |value| (a String, or an object serialized as JSON) as one line of |path|.
+   * |value| must not be modified afterwards.
+   */
+  public void log(String path, Object value) {
+    if (closed) {
+      LogInfo.logs("AsyncLogWriter: closed, dropping record for %s", path);
+      return;
+    }
+    queue.add(new Record(path, value));
+  }
+
+  /**
+   * Write out everything queued so far and close all files.
+   */
+  public void close() {
+    if (closed) return;
+    closed = true;
+    LockSupport.unpark(writerThread);
+    try {
+      writerThread.join(TimeUnit.SECONDS.toMillis(10));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void run() {
+    while (true) {
+      boolean wasClosed = closed;
+      drain();
+      if (wasClosed) break;
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(opts.flushIntervalMs));
+    }
+    for (OpenLog log : openLogs.values())
+      closeQuietly(log);
+    openLogs.clear();
+  }
+
+  // Write all queued records, then flush each file that was written to once.
+  private void drain() {
+    Map<String, OpenLog> written = new HashMap<>();
+    Record record;
+    while ((record = queue.poll()) != null) {
+      try {
+        OpenLog log = getLog(record.path);
+        String line = record.value instanceof String ? (String) record.value : Json.writeValueAsStringHard(record.value);
+        log.out.write(line);
+        log.out.write('\n');
+        written.put(record.path, log);
+      } catch (IOException | RuntimeException e) {
+        LogInfo.logs("AsyncLogWriter: failed to write to %s: %s", record.path, e);
+      }
+    }
+    for (Map.Entry<String, OpenLog> entry : written.entrySet()) {
+      try {
+        entry.getValue().out.flush();
+      } catch (IOException e) {
+        LogInfo.logs("AsyncLogWriter: failed to flush %s: %s", entry.getKey(), e);
+      }
+    }
+  }
+
+  private OpenLog getLog(String path) throws IOException {
+    OpenLog log = openLogs.get(path);
+    if (log != null && needsRotation(log)) {
+      closeQuietly(log);
+      File file = new File(fileName(path));
+      File rotated = new File(fileName(path + "." + LocalDateTime.now().format(ROTATE_FORMAT)));
+      if (!file.renameTo(rotated))
+        LogInfo.logs("AsyncLogWriter: could not rotate %s to %s", file, rotated);
+      log = null;
+    }
+    if (log == null) {
+      File file = new File(fileName(path));
+      File parent = file.getAbsoluteFile().getParentFile();
+      if (parent != null) parent.mkdirs();
+      long initialBytes = file.length();
+      CountingOutputStream written = new CountingOutputStream(new FileOutputStream(file, true));
+      OutputStream stream = written;
+      if (opts.gzip)
+        stream = new GZIPOutputStream(stream, true);  // Appends a new gzip member
+      log = new OpenLog(new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8)), initialBytes, written);
+      openLogs.put(path, log);
+    }
+    return log;
+  }
+
+  private boolean needsRotation(OpenLog log) {
+    if (opts.maxFileBytes > 0 && log.numBytes() >= opts.maxFileBytes)
+      return true;
+    if (opts.rotateMinutes > 0 && System.nanoTime() - log.openTime >= TimeUnit.MINUTES.toNanos(opts.rotateMinutes))
+      return true;
+    return false;
+  }
+
+  private static String fileName(String path) {
+    return opts.gzip ? path + ".gz" : path;
+  }
+
+  private static void closeQuietly(OpenLog log) {
+    try {
+      log.out.close();
+    } catch (IOException e) {
+      LogInfo.logs("AsyncLogWriter: failed to close log: %s", e);
+    }
+  }
+}
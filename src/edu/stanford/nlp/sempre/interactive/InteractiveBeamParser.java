@@ -1,6 +1,7 @@
 package edu.stanford.nlp.sempre.interactive;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -16,6 +17,7 @@ import com.beust.jcommander.internal.Lists;
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
 
+import edu.stanford.nlp.sempre.CategoryIndex;
 import edu.stanford.nlp.sempre.ChartParserState;
 import edu.stanford.nlp.sempre.Derivation;
 import edu.stanford.nlp.sempre.DerivationStream;
@@ -33,7 +35,6 @@ import fig.basic.IOUtils;
 import fig.basic.IntRef;
 import fig.basic.LogInfo;
 import fig.basic.Option;
-import fig.basic.SetUtils;
 import fig.basic.StopWatch;
 import fig.basic.StopWatchSet;
 import fig.exec.Execution;
@@ -240,15 +241,13 @@ class InteractiveBeamParserState extends ChartParserState {
   protected void build(int start, int end) {
     applyNonCatUnaryRules(start, end, start, parser.trie, new ArrayList<Derivation>(), new IntRef(0));
 
-    Set<String> cellsPruned = new HashSet<>();
+    BitSet cellsPruned = new BitSet();
     applyCatUnaryRules(start, end, cellsPruned);
 
-    for (Map.Entry<String, List<Derivation>> entry : chart[start][end].entrySet())
-      pruneCell(cellsPruned, entry.getKey(), start, end, entry.getValue());
-  }
-
-  private static String cellString(String cat, int start, int end) {
-    return cat + ":" + start + ":" + end;
+    for (int k = 0; k < numCats(start, end); k++) {
+      int catId = getCat(start, end, k);
+      pruneCell(cellsPruned, catId, start, end, getCell(start, end, catId));
+    }
   }
 
   // Return number of new derivations added
@@ -283,13 +282,12 @@ class InteractiveBeamParserState extends ChartParserState {
   }
 
   // Don't prune the same cell more than once.
-  protected void pruneCell(Set<String> cellsPruned, String cat, int start, int end, List<Derivation> derivations) {
-    String cell = cellString(cat, start, end);
-    if (cellsPruned.contains(cell))
+  // cellsPruned: ids of the categories of the span that have been pruned
+  protected void pruneCell(BitSet cellsPruned, int catId, int start, int end, List<Derivation> derivations) {
+    if (cellsPruned.get(catId))
       return;
-    
-    cellsPruned.add(cell);
-    pruneCell(cell, derivations);
+    cellsPruned.set(catId);
+    pruneCell(start, end, catId, derivations);
   }
 
   private boolean canBeRoot(int start, int end) {return start==0 && end==numTokens;};
@@ -297,21 +295,21 @@ class InteractiveBeamParserState extends ChartParserState {
   // Before applying each unary rule (rule.lhs -> rhsCat), we can prune the cell
   // of rhsCat
   // because we assume acyclicity, so rhsCat's cell will never grow.
-  private void applyCatUnaryRules(int start, int end, Set<String> cellsPruned) {
+  private void applyCatUnaryRules(int start, int end, BitSet cellsPruned) {
     for (Rule rule : parser.getCatUnaryRules()) {
-      if (!coarseAllows(rule.lhs, start, end))
+      if (!coarseAllows(rule.getLhsId(), start, end))
         continue;
       if (rule.lhs.equals(Rule.rootCat) && !canBeRoot(start, end))
         continue;
-      String rhsCat = rule.rhs.get(0);
-      List<Derivation> derivations = chart[start][end].get(rhsCat);
+      int rhsCatId = CategoryIndex.global.getIdIfPresent(rule.rhs.get(0));
+      List<Derivation> derivations = getCell(start, end, rhsCatId);
       if (Parser.opts.verbose >= 5)
         LogInfo.logs("applyCatUnaryRules %s %s %s %s", start, end, rule, chart[start][end]);
       if (derivations == null)
         continue;
 
       // Prune before applying rules to eliminate cruft!
-      pruneCell(cellsPruned, rhsCat, start, end, derivations);
+      pruneCell(cellsPruned, rhsCatId, start, end, derivations);
 
       for (Derivation deriv : derivations) {
         applyRule(start, end, rule, Collections.singletonList(deriv));
@@ -344,7 +342,7 @@ class InteractiveBeamParserState extends ChartParserState {
       Iterator<Rule> ruleIterator = node.rules.iterator();
       while (ruleIterator.hasNext()) {
         Rule rule = ruleIterator.next();
-        if (coarseAllows(rule.lhs, start, end)) {
+        if (coarseAllows(rule.getLhsId(), start, end)) {
           numNew.value += applyRule(start, end, rule, children);
         }
       }
@@ -356,9 +354,11 @@ class InteractiveBeamParserState extends ChartParserState {
 
     // Advance non-terminal category
     for (int j = i + 1; j <= end; j++) {
-      for (Map.Entry<String, List<Derivation>> entry : chart[i][j].entrySet()) {
-        Trie nextNode = node.next(entry.getKey());
-        for (Derivation arg : entry.getValue()) {
+      for (int k = 0; k < numCats(i, j); k++) {
+        int catId = getCat(i, j, k);
+        Trie nextNode = node.nextCat(catId);
+        if (nextNode == null) continue;
+        for (Derivation arg : getCell(i, j, catId)) {
           children.add(arg);
           applyNonCatUnaryRules(start, end, j, nextNode, children, numNew);
           children.remove(children.size() - 1);
@@ -374,13 +374,13 @@ class InteractiveBeamParserState extends ChartParserState {
   /* For each span, apply applicable floating rules */
   protected void buildFloating(int start, int end) {
     for (Rule rule : parser.grammar.getRules()) {
-      if (!rule.isFloating() || !coarseAllows(rule.lhs, start, end))
+      if (!rule.isFloating() || !coarseAllows(rule.getLhsId(), start, end))
         continue;
 
       if (rule.rhs.size() == 1) {
         /* Apply cat unary rules simply */
         String rhsCat = rule.rhs.get(0);
-        List<Derivation> derivs = chart[start][end].get(rhsCat);
+        List<Derivation> derivs = getCell(start, end, rhsCat);
 
         if (derivs == null)
           continue;
@@ -404,9 +404,11 @@ class InteractiveBeamParserState extends ChartParserState {
       }
     }
     // test prune
-    Set<String> cellsPruned = new HashSet<>();
-    for (Map.Entry<String, List<Derivation>> entry : chart[start][end].entrySet())
-      pruneCell(cellsPruned, entry.getKey(), start, end, entry.getValue());
+    BitSet cellsPruned = new BitSet();
+    for (int k = 0; k < numCats(start, end); k++) {
+      int catId = getCat(start, end, k);
+      pruneCell(cellsPruned, catId, start, end, getCell(start, end, catId));
+    }
   }
 
   protected int applyFloatingRule(Rule rule, int start, int end, Map<String, List<Derivation>> first,
@@ -468,63 +470,58 @@ class InteractiveBeamParserState extends ChartParserState {
     if (numTokens == 0)
       return;
 
-    Set<String> reachable = new HashSet<>();
-    collectReachable(reachable, Rule.rootCat, 0, numTokens);
+    // Cells are marked by cellIndex()
+    BitSet reachable = new BitSet();
+    collectReachable(reachable, CategoryIndex.global.getId(Rule.rootCat), 0, numTokens);
 
     // Remove all derivations associated with (cat, start, end) that aren't
     // reachable.
     for (int start = 0; start < numTokens; start++) {
       for (int end = start + 1; end <= numTokens; end++) {
-        List<String> toRemoveCats = new LinkedList<>();
-        for (String cat : chart[start][end].keySet()) {
-          String key = catStartEndKey(cat, start, end);
-          if (!reachable.contains(key)) {
-            toRemoveCats.add(cat);
-          }
-        }
-        Collections.sort(toRemoveCats);
-        for (String cat : toRemoveCats) {
+        for (int k = numCats(start, end) - 1; k >= 0; k--) {
+          int catId = getCat(start, end, k);
+          if (reachable.get(cellIndex(start, end, catId))) continue;
           if (parser.verbose(4)) {
-            LogInfo.logs("Pruning chart %s(%s,%s)", cat, start, end);
+            LogInfo.logs("Pruning chart %s(%s,%s)", CategoryIndex.global.getCategory(catId), start, end);
           }
-          chart[start][end].remove(cat);
+          setCell(start, end, catId, null);
         }
       }
     }
   }
 
-  private void collectReachable(Set<String> reachable, String cat, int start, int end) {
-    String key = catStartEndKey(cat, start, end);
-    if (reachable.contains(key))
-      return;
-
-    if (!chart[start][end].containsKey(cat)) {
+  private void collectReachable(BitSet reachable, int catId, int start, int end) {
+    List<Derivation> derivations = getCell(start, end, catId);
+    if (derivations == null) {
       // This should only happen for the root when there are no parses.
       return;
     }
 
-    reachable.add(key);
-    for (Derivation deriv : chart[start][end].get(cat)) {
+    int cell = cellIndex(start, end, catId);
+    if (reachable.get(cell))
+      return;
+    reachable.set(cell);
+    for (Derivation deriv : derivations) {
       for (Derivation subderiv : deriv.children) {
-        collectReachable(reachable, subderiv.cat, subderiv.start, subderiv.end);
+        collectReachable(reachable, CategoryIndex.global.getId(subderiv.cat), subderiv.start, subderiv.end);
       }
     }
   }
 
-  private String catStartEndKey(String cat, int start, int end) {
-    return cat + ":" + start + ":" + end;
-  }
-
   // For pruning with the coarse state
   protected boolean coarseAllows(Trie node, int start, int end) {
     if (coarseState == null)
       return true;
-    return SetUtils.intersects(node.cats, coarseState.chart[start][end].keySet());
+    for (int k = 0; k < coarseState.numCats(start, end); k++) {
+      if (node.hasCat(coarseState.getCat(start, end, k)))
+        return true;
+    }
+    return false;
   }
 
-  protected boolean coarseAllows(String cat, int start, int end) {
+  protected boolean coarseAllows(int catId, int start, int end) {
     if (coarseState == null)
       return true;
-    return coarseState.chart[start][end].containsKey(cat);
+    return coarseState.getCell(start, end, catId) != null;
   }
 }
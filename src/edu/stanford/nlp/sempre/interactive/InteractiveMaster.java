@@ -4,6 +4,7 @@ import java.io.PrintWriter;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.locks.Lock;
 import java.util.stream.Collectors;
 
 import org.testng.util.Strings;
@@ -76,20 +77,40 @@ public class InteractiveMaster extends Master {
     LogInfo.logs("query %s", line);
     line = line.trim();
     Response response = new Response();
-    if (line.startsWith("(:"))
-      handleCommand(session, line, response);
-    else if (line.startsWith("(") && opts.allowRegularCommands || session.id.equals("stdin"))
-      super.processQuery(session, line);
-    else
-      handleCommand(session, String.format("(:q \"%s\")", line), response);
+    // Queries on the same session are serialized, other sessions run concurrently
+    synchronized (session) {
+      if (line.startsWith("(:"))
+        handleCommand(session, line, response);
+      else if (line.startsWith("(") && opts.allowRegularCommands || session.id.equals("stdin"))
+        super.processQuery(session, line);
+      else
+        handleCommand(session, String.format("(:q \"%s\")", line), response);
+    }
     LogInfo.end_track();
     return response;
   }
 
   void handleCommand(Session session, String line, Response response) {
     LispTree tree = LispTree.proto.parseFromString(line);
-    tree = builder.grammar.applyMacros(tree);
+    modelLock.readLock().lock();
+    try {
+      tree = builder.grammar.applyMacros(tree);
+    } finally {
+      modelLock.readLock().unlock();
+    }
+
+    // Queries only read the grammar and parameters; everything else may change them
+    String command = tree.child(0).value;
+    Lock lock = command.equals(":q") ? modelLock.readLock() : modelLock.writeLock();
+    lock.lock();
+    try {
+      handleCommand(session, tree, response);
+    } finally {
+      lock.unlock();
+    }
+  }
 
+  private void handleCommand(Session session, LispTree tree, Response response) {
     String command = tree.child(0).value;
     QueryStats stats = new QueryStats(response, command);
     // Start of interactive commands
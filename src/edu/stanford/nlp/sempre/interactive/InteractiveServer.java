@@ -8,15 +8,16 @@ import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.time.LocalDateTime;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.base.Strings;
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
@@ -64,14 +65,20 @@ public class InteractiveServer {
     @Option(gloss="if the query is already in json, then parse it instead of storing an escaped string")
     public boolean isJsonQuery = false;
     @Option public String basePath = "plot-out";
+    @Option(gloss = "Write the JSON response directly to the client instead of building it in memory first")
+    public boolean streamResponses = true;
+    @Option(gloss = "Gzip the JSON response if the client accepts it")
+    public boolean gzipResponses = true;
   }
 
   public static Options opts = new Options();
-  private static Object queryLogLock = new Object();
-  private static Object responseLogLock = new Object();
   private static AtomicLong queryCounter = new AtomicLong();
+  // System.nanoTime() when the request being handled by this thread was handed to the HTTP pool
+  private static final ThreadLocal<Long> arrivalTime = new ThreadLocal<>();
   private static String startTime = LocalDateTime.now().toString();
   Master master;
+  QueryScheduler scheduler;
+  AsyncLogWriter logWriter;
 
   class Handler implements HttpHandler {
     @Override
@@ -87,6 +94,7 @@ public class InteractiveServer {
   class ExchangeState {
     // Input
     HttpExchange exchange;
+    long arrivalNanos;
     Map<String, String> reqParams = new HashMap<>();
     String remoteHost;
 
@@ -98,6 +106,7 @@ public class InteractiveServer {
 
     public ExchangeState(HttpExchange exchange) throws IOException {
       this.exchange = exchange;
+      this.arrivalNanos = arrivalTime.get() != null ? arrivalTime.get() : System.nanoTime();
 
       URI uri = exchange.getRequestURI();
       this.remoteHost = exchange.getRemoteAddress().getHostName();
@@ -155,6 +164,11 @@ public class InteractiveServer {
       exchange.close();
     }
 
+    boolean acceptsGzip() {
+      String encodings = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+      return encodings != null && encodings.contains("gzip");
+    }
+
     void getFile(String path) throws IOException {
       if (!new File(path).exists()) {
         LogInfo.logs("File doesn't exist: %s", path);
@@ -185,77 +199,139 @@ public class InteractiveServer {
     }
 
     void setHeaders(String mimeType) throws IOException {
+      setHeaders(mimeType, 200);
+    }
+
+    void setHeaders(String mimeType, int status) throws IOException {
       Headers headers = exchange.getResponseHeaders();
       headers.set("Content-Type", mimeType);
       headers.set("Access-Control-Allow-Origin", "*");
       if (isNewSession && cookie != null)
         headers.set("Set-Cookie", cookie.toString());
-      exchange.sendResponseHeaders(200, 0);
+      exchange.sendResponseHeaders(status, 0);
+    }
+
+    // Candidates sent to the client; notes in response.lines if some were cut off.
+    List<Derivation> getCandidates(Master.Response response) {
+      if (response.getExample() == null) return null;
+      List<Derivation> allCandidates = response.getExample().getPredDerivations();
+      if (allCandidates != null && allCandidates.size() > InteractiveServer.opts.maxCandidates) {
+        response.lines.add(String.format("Exceeded max options: (current: %d / max: %d) ", allCandidates.size(),
+            InteractiveServer.opts.maxCandidates));
+//        allCandidates = truncateCandidates(allCandidates, opts.maxCandidates);
+        allCandidates = allCandidates.subList(0, opts.maxCandidates);
+      }
+      return allCandidates != null ? allCandidates : Collections.emptyList();
+    }
+
+    Object getCandidateValue(Value value) {
+      if (value instanceof StringValue)
+        return ((StringValue) value).value;
+      else if (value instanceof JsonValue)
+        return ((JsonValue) value).getJsonNode();
+      else if (value != null)
+        return value.sortString();
+      else
+        return null;
+    }
+
+    // In the session-scoped mode, candidates are sent as JSON Patches against the context
+    JsonNode getPatchBase(Master.Response response) {
+      Example ex = response.getExample();
+      if (!Boolean.TRUE.equals(response.stats.get("patches")) || ex == null
+          || !(ex.context instanceof VegaJsonContextValue))
+        return null;
+      return ((VegaJsonContextValue) ex.context).getJsonNode();
     }
 
     Map<String, Object> makeJson(Master.Response response) {
       Map<String, Object> json = new HashMap<String, Object>();
       json.put("stats", response.stats);
 
+      List<Derivation> candidates = getCandidates(response);
       if (response.lines != null) {
         json.put("lines", response.lines);
       }
-      if (response.getExample() != null) {
-        List<Object> items = new ArrayList<Object>();
-        json.put("candidates", items);
-        List<Derivation> allCandidates = response.getExample().getPredDerivations();
-        if (allCandidates != null) {
-          if (allCandidates.size() > InteractiveServer.opts.maxCandidates) {
-            response.lines.add(String.format("Exceeded max options: (current: %d / max: %d) ", allCandidates.size(),
-                InteractiveServer.opts.maxCandidates));
-//            allCandidates = truncateCandidates(allCandidates, opts.maxCandidates);
-            allCandidates = allCandidates.subList(0, opts.maxCandidates);
-          }
-          int errorValueCount = 0;
-          for (Derivation deriv : allCandidates) {
-            Value value = deriv.getValue();
-            if (value instanceof ErrorValue) {
-              errorValueCount++;
-              continue;
-            }
-            Map<String, Object> item = new HashMap<String, Object>();
-            
-            if (value instanceof StringValue)
-              item.put("value", ((StringValue) value).value);
-            else if (value instanceof ErrorValue)
-              item.put("value", ((ErrorValue) value).sortString());
-            else if (value instanceof JsonValue)
-              item.put("value", ((JsonValue) value).getJsonNode());
-            else if (value != null)
-              item.put("value", value.sortString());
-            else
-              item.put("value", null);
-            item.put("score", deriv.getScore());
-            item.put("prob", deriv.getProb());
-            item.put("anchored", deriv.allAnchored); // used only anchored rules
-
-            item.put("formula", deriv.formula.toString());
-            item.put("canonical", deriv.canonicalUtterance);
-
-            items.add(item);
+      if (candidates != null) {
+        json.put("candidates", makeCandidates(candidates, getPatchBase(response)));
+      }
+      return json;
+    }
+
+    List<Object> makeCandidates(List<Derivation> candidates, JsonNode patchBase) {
+      List<Object> items = new ArrayList<Object>();
+      for (Derivation deriv : candidates) {
+        Value value = deriv.getValue();
+        if (value instanceof ErrorValue)
+          continue;
+        Map<String, Object> item = new HashMap<String, Object>();
+        if (patchBase != null && value instanceof JsonValue)
+          item.put("patch", JsonUtils.jsonPatch(patchBase, ((JsonValue) value).getJsonNode()));
+        else
+          item.put("value", getCandidateValue(value));
+        item.put("score", deriv.getScore());
+        item.put("prob", deriv.getProb());
+        item.put("anchored", deriv.allAnchored); // used only anchored rules
+
+        item.put("formula", deriv.formula.toString());
+        item.put("canonical", deriv.canonicalUtterance);
+
+        items.add(item);
+      }
+      LogInfo.logs("Server: %d / %d error values", candidates.size() - items.size(), candidates.size());
+      return items;
+    }
+
+    /**
+     * Same output as makeJson, but written straight to |out| as it goes, so
+     * that the candidates (and their plot specs) are not first collected into
+     * maps and then into one big String.
+     */
+    void writeJson(Master.Response response, List<Derivation> candidates, OutputStream out) throws IOException {
+      JsonGenerator gen = Json.getMapper().getFactory().createGenerator(out, JsonEncoding.UTF8);
+      gen.writeStartObject();
+      gen.writeObjectField("stats", response.stats);
+      if (response.lines != null)
+        gen.writeObjectField("lines", response.lines);
+      if (candidates != null) {
+        JsonNode patchBase = getPatchBase(response);
+        int errorValueCount = 0;
+        gen.writeArrayFieldStart("candidates");
+        for (Derivation deriv : candidates) {
+          Value value = deriv.getValue();
+          if (value instanceof ErrorValue) {
+            errorValueCount++;
+            continue;
           }
-          LogInfo.logs("Server: %d / %d error values", errorValueCount, allCandidates.size());
+          gen.writeStartObject();
+          if (patchBase != null && value instanceof JsonValue)
+            gen.writeObjectField("patch", JsonUtils.jsonPatch(patchBase, ((JsonValue) value).getJsonNode()));
+          else
+            gen.writeObjectField("value", getCandidateValue(value));
+          gen.writeNumberField("score", deriv.getScore());
+          gen.writeNumberField("prob", deriv.getProb());
+          gen.writeBooleanField("anchored", deriv.allAnchored); // used only anchored rules
+          gen.writeStringField("formula", deriv.formula.toString());
+          gen.writeStringField("canonical", deriv.canonicalUtterance);
+          gen.writeEndObject();
         }
+        gen.writeEndArray();
+        LogInfo.logs("Server: %d / %d error values", errorValueCount, candidates.size());
       }
-      return json;
+      gen.writeEndObject();
+      gen.writeRaw('\n');
+      gen.close();
     }
 
-    // This should be concurrent
-    Master.Response processQuery(Session session, String query) {
+    Master.Response processQuery(Session session, String query) throws QueryScheduler.RejectedQueryException {
       String message = null;
       Master.Response response = master.new Response();
-      ExecutorService executor = Executors.newSingleThreadExecutor();
-      Future<Master.Response> future = executor.submit(() -> master.processQuery(session, query));
-      long startTime = System.nanoTime();
       try {
         // most exceptions should be handled in InteractiveMaster
         // so the response can be more specific
-        response = future.get(opts.maxExecutionTime, TimeUnit.SECONDS);
+        response = scheduler.call(() -> master.processQuery(session, query), arrivalNanos, opts.maxExecutionTime);
+      } catch (QueryScheduler.RejectedQueryException e) {
+        throw e;
       } catch (Throwable e) {
         e.printStackTrace();
         message = e.toString();
@@ -264,11 +340,10 @@ public class InteractiveServer {
         LogInfo.flush();
         LogInfo.resetInfos();
       } finally {
-        future.cancel(true);
-        executor.shutdown();
         long endTime = System.nanoTime();
-        response.stats.put("walltime", (endTime - startTime) / 1.0e9);
+        response.stats.put("walltime", (endTime - arrivalNanos) / 1.0e9);
         response.stats.put("count", queryCounter.get());
+        response.stats.put("queueDepth", scheduler.queueDepth());
       }
       return response;
     }
@@ -282,7 +357,7 @@ public class InteractiveServer {
       session.format = "json";
 
       LocalDateTime queryTime = LocalDateTime.now();
-      synchronized (queryLogLock) { // write the query log
+      { // write the query log
         Map<String, Object> jsonMap = new LinkedHashMap<>();
         jsonMap.put("count", queryNumber);
         jsonMap.put("startTime", startTime);
@@ -297,9 +372,9 @@ public class InteractiveServer {
         reqParams.remove("q");
         jsonMap.putAll(reqParams);
         if (session.isLogging()) {
-          logLine(opts.queryLogPath, Json.writeValueAsStringHard(jsonMap));
+          logWriter.log(opts.queryLogPath, jsonMap);
         } else {
-          logLine(opts.queryLogPath + ".sandbox", Json.writeValueAsStringHard(jsonMap));
+          logWriter.log(opts.queryLogPath + ".sandbox", jsonMap);
         }
       }
 
@@ -309,26 +384,47 @@ public class InteractiveServer {
         query = "null";
       logs("Server.handleQuery %s: %s", session.id, query);
 
-      // Print header
-      setHeaders("application/json");
-
       Master.Response masterResponse = null;
-      if (query != null) {
+      try {
         masterResponse = processQuery(session, query);
+      } catch (QueryScheduler.RejectedQueryException e) {
+        // Overloaded: tell the client to come back later instead of timing out
+        LogInfo.logs("Server: rejected query %d: %s", queryNumber, e.getMessage());
+        exchange.getResponseHeaders().set("Retry-After", String.valueOf(opts.maxExecutionTime));
+        setHeaders("application/json", 503);
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("error", "server busy: " + e.getMessage());
+        stats.put("count", queryNumber);
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(exchange.getResponseBody()));
+        out.println(Json.writeValueAsStringHard(Collections.singletonMap("stats", stats)));
+        out.close();
+        return;
       }
 
-      synchronized (responseLogLock) { // write the response log log
-        Map<String, Object> responseMap = null;
-        {
-          PrintWriter out = new PrintWriter(new OutputStreamWriter(exchange.getResponseBody()));
-          if (masterResponse != null) {
-            // Render answer
-            Example ex = masterResponse.getExample();
-            responseMap = makeJson(masterResponse);
-            out.println(Json.writeValueAsStringHard(responseMap));
-          }
-          out.close();
+      // Print header
+      boolean gzip = opts.gzipResponses && acceptsGzip();
+      if (gzip)
+        exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+      setHeaders("application/json");  // Length 0: the body is sent chunked
+
+      Map<String, Object> responseMap = null;
+      List<Derivation> candidates = null;
+      {
+        OutputStream out = exchange.getResponseBody();
+        if (gzip)
+          out = new GZIPOutputStream(out);
+        if (opts.streamResponses) {
+          candidates = getCandidates(masterResponse);
+          writeJson(masterResponse, candidates, new BufferedOutputStream(out));
+        } else {
+          PrintWriter writer = new PrintWriter(new OutputStreamWriter(out));
+          responseMap = makeJson(masterResponse);
+          writer.println(Json.writeValueAsStringHard(responseMap));
+          writer.close();
         }
+      }
+
+      { // write the response log
         Map<String, Object> jsonMap = new LinkedHashMap<>();
         LocalDateTime responseTime = LocalDateTime.now();
         // jsonMap.put("responseTime", responseTime.toString());
@@ -336,36 +432,19 @@ public class InteractiveServer {
         jsonMap.put("ms", String.format("%.3f", java.time.Duration.between(queryTime, responseTime).toNanos() / 1.0e6));
         jsonMap.put("sessionId", sessionId);
         jsonMap.put("q", query); // backwards compatibility...
-        jsonMap.put("lines", responseMap.get("lines"));
-        if (session.isLogging()) {
-          logLine(opts.responseLogPath, Json.writeValueAsStringHard(jsonMap));
-          if (!Strings.isNullOrEmpty(opts.fullResponseLogPath)) {
-            jsonMap.put("candidates", responseMap.get("candidates"));
-            logLine(opts.fullResponseLogPath, Json.writeValueAsStringHard(jsonMap));
-          }
-        } else {
-          logLine(opts.responseLogPath + ".sandbox", Json.writeValueAsStringHard(jsonMap));
-          if (!Strings.isNullOrEmpty(opts.fullResponseLogPath)) {
-            jsonMap.put("candidates", responseMap.get("candidates"));
-            logLine(opts.fullResponseLogPath + ".sandbox", Json.writeValueAsStringHard(jsonMap));
-          }
-          // LogInfo.log(Json.writeValueAsStringHard(jsonMap));
+        jsonMap.put("lines", masterResponse.lines);
+        String suffix = session.isLogging() ? "" : ".sandbox";
+        logWriter.log(opts.responseLogPath + suffix, jsonMap);
+        if (!Strings.isNullOrEmpty(opts.fullResponseLogPath)) {
+          // The writer serializes later, so log a copy rather than modify jsonMap
+          Map<String, Object> fullMap = new LinkedHashMap<>(jsonMap);
+          fullMap.put("candidates", responseMap != null ? responseMap.get("candidates")
+              : candidates != null ? makeCandidates(candidates, getPatchBase(masterResponse)) : null);
+          logWriter.log(opts.fullResponseLogPath + suffix, fullMap);
         }
       }
     }
 
-    void logLine(String path, String line) {
-      PrintWriter out;
-      try {
-        out = IOUtils.openOutAppend(path);
-        out.println(line);
-        out.close();
-      } catch (IOException e) {
-        // TODO Auto-generated catch block
-        e.printStackTrace();
-      }
-    }
-
     private synchronized List<Derivation> truncateCandidates(List<Derivation> all, int size) {
       List<Derivation> keep = new ArrayList<>();
       Random rand = new Random();
@@ -389,18 +468,35 @@ public class InteractiveServer {
 
   public InteractiveServer(Master master) {
     this.master = master;
+    this.scheduler = new QueryScheduler();
+    this.logWriter = new AsyncLogWriter();
   }
 
   public void run() {
     try {
       String hostname = fig.basic.SysInfoUtils.getHostName();
       HttpServer server = HttpServer.create(new InetSocketAddress(opts.port), 10);
+      // HTTP threads mostly wait for the scheduler, so have enough of them for
+      // every query the scheduler can hold: then the backlog is in the
+      // scheduler's queue, where admission control sees it.
+      int numHttpThreads = opts.numThreads + scheduler.capacity();
       // generous timeout here
-      ExecutorService pool = new ThreadPoolExecutor(opts.numThreads, opts.numThreads, 120, TimeUnit.SECONDS,
+      ThreadPoolExecutor pool = new ThreadPoolExecutor(numHttpThreads, numHttpThreads, 120, TimeUnit.SECONDS,
           new LinkedBlockingQueue<Runnable>());
-      // Executors.newFixedThreadPool(opts.numThreads);
+      pool.allowCoreThreadTimeOut(true);
       server.createContext("/", new Handler());
-      server.setExecutor(pool);
+      // Requests that still wait for an HTTP thread have their wait counted against their deadline
+      server.setExecutor(task -> {
+        long arrival = System.nanoTime();
+        pool.execute(() -> {
+          arrivalTime.set(arrival);
+          try {
+            task.run();
+          } finally {
+            arrivalTime.remove();
+          }
+        });
+      });
       server.start();
       LogInfo.logs("JSON Server (%d threads) started at http://%s:%s/sempre", opts.numThreads, hostname, opts.port);
       LogInfo.log("Press Ctrl-D to terminate.");
@@ -411,6 +507,9 @@ public class InteractiveServer {
       server.stop(0);
       LogInfo.log("Shutting down executor pool...");
       pool.shutdown();
+      scheduler.shutdown();
+      LogInfo.logs("QueryScheduler: %s", scheduler.metrics());
+      logWriter.close();
       LogInfo.end_threads();
     } catch (IOException e) {
       throw new RuntimeException(e);
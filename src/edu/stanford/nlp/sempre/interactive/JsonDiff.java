@@ -0,0 +1,148 @@
+package edu.stanford.nlp.sempre.interactive;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntPredicate;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Diffs two JSON trees in one simultaneous pass and reports the paths that
+ * differ as interned ids, without building path lists.
+ *
+ * The paths are the ones VegaValueEvaluator compared with
+ * JsonUtils.allPathValues(node, true): leaves, plus every node below an array.
+ * A path differs if its value in the old tree is not equal to its value in
+ * the new tree, or if it only exists in the new tree.
+ * Nothing differs below a pair of equal subtrees, so those are skipped
+ * without interning their paths: an unchanged inline data array costs an
+ * equality check, and only paths on the way to a difference get ids.
+ * Ids are only meaningful within one JsonDiff instance.  Thread-safe.
+ */
+public class JsonDiff {
+  // Children are created on first use (most nodes are leaves).  Reads are
+  // lock-free; adding an array element copies the (short) array under the node's lock.
+  private static class PathNode {
+    final int id;
+    volatile Map<String, PathNode> fields;
+    volatile PathNode[] elements;
+
+    PathNode(int id) {
+      this.id = id;
+    }
+  }
+
+  private final AtomicInteger numPaths = new AtomicInteger();
+  private final PathNode root = new PathNode(numPaths.getAndIncrement());
+
+  // Number of paths interned so far
+  public int size() {
+    return numPaths.get();
+  }
+
+  /**
+   * Calls |visitor| with the id of each path that differs between |oldNode| and |newNode|,
+   * stopping as soon as it returns true.  Returns whether it stopped early.
+   */
+  public boolean diff(JsonNode oldNode, JsonNode newNode, IntPredicate visitor) {
+    if (oldNode != null && oldNode.equals(newNode))
+      return false;
+    return diff(oldNode, newNode, root, false, visitor);
+  }
+
+  /**
+   * Sorted ids of the paths that differ between |oldNode| and |newNode|.
+   */
+  public int[] diffIds(JsonNode oldNode, JsonNode newNode) {
+    int[][] ids = {new int[8]};
+    int[] size = {0};
+    diff(oldNode, newNode, id -> {
+      if (size[0] == ids[0].length) ids[0] = Arrays.copyOf(ids[0], 2 * size[0]);
+      ids[0][size[0]++] = id;
+      return false;
+    });
+    int[] result = Arrays.copyOf(ids[0], size[0]);
+    Arrays.sort(result);
+    return result;
+  }
+
+  private boolean diff(JsonNode a, JsonNode b, PathNode path, boolean belowArray, IntPredicate visitor) {
+    if (a != null) {
+      if ((belowArray || a.isValueNode()) && !a.equals(b) && visitor.test(path.id))
+        return true;
+    } else if (b != null && (belowArray || b.isValueNode()) && visitor.test(path.id)) {
+      return true;
+    }
+
+    // Children of |a|, paired with the same path in |b|
+    if (a != null && a.isObject()) {
+      Iterator<Map.Entry<String, JsonNode>> it = a.fields();
+      while (it.hasNext()) {
+        Map.Entry<String, JsonNode> entry = it.next();
+        JsonNode other = b != null && b.isObject() ? b.get(entry.getKey()) : null;
+        if (entry.getValue().equals(other)) continue;
+        if (diff(entry.getValue(), other, field(path, entry.getKey()), belowArray, visitor))
+          return true;
+      }
+    } else if (a != null && a.isArray()) {
+      for (int i = 0; i < a.size(); i++) {
+        JsonNode other = b != null && b.isArray() ? b.get(i) : null;
+        if (a.get(i).equals(other)) continue;
+        if (diff(a.get(i), other, element(path, i), true, visitor))
+          return true;
+      }
+    }
+
+    // Children only in |b|
+    if (b != null && b.isObject()) {
+      boolean aIsObject = a != null && a.isObject();
+      Iterator<Map.Entry<String, JsonNode>> it = b.fields();
+      while (it.hasNext()) {
+        Map.Entry<String, JsonNode> entry = it.next();
+        if (aIsObject && a.has(entry.getKey())) continue;
+        if (diff(null, entry.getValue(), field(path, entry.getKey()), belowArray, visitor))
+          return true;
+      }
+    } else if (b != null && b.isArray()) {
+      int start = a != null && a.isArray() ? a.size() : 0;
+      for (int i = start; i < b.size(); i++) {
+        if (diff(null, b.get(i), element(path, i), true, visitor))
+          return true;
+      }
+    }
+    return false;
+  }
+
+  private PathNode field(PathNode parent, String name) {
+    Map<String, PathNode> fields = parent.fields;
+    if (fields == null) {
+      synchronized (parent) {
+        fields = parent.fields;
+        if (fields == null)
+          parent.fields = fields = new ConcurrentHashMap<>(4);
+      }
+    }
+    PathNode child = fields.get(name);
+    return child != null ? child : fields.computeIfAbsent(name, k -> new PathNode(numPaths.getAndIncrement()));
+  }
+
+  private PathNode element(PathNode parent, int index) {
+    PathNode[] elements = parent.elements;
+    if (elements != null && index < elements.length && elements[index] != null)
+      return elements[index];
+    synchronized (parent) {
+      elements = parent.elements;
+      if (elements != null && index < elements.length && elements[index] != null)
+        return elements[index];
+      PathNode[] newElements = elements == null ? new PathNode[index + 1]
+          : Arrays.copyOf(elements, Math.max(index + 1, elements.length));
+      PathNode child = new PathNode(numPaths.getAndIncrement());
+      newElements[index] = child;
+      parent.elements = newElements;
+      return child;
+    }
+  }
+}
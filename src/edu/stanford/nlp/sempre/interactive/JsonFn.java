@@ -1,8 +1,11 @@
 package edu.stanford.nlp.sempre.interactive;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.collect.Lists;
 
 import edu.stanford.nlp.sempre.ActionFormula;
@@ -29,6 +32,8 @@ public class JsonFn extends SemanticFn {
   public static class Options {
     @Option(gloss = "verbosity")
     public int verbose = 0;
+    @Option(gloss = "Drop joined values that would not change the context or would fail to execute")
+    public boolean pruneJoin = true;
   }
 
   public static Options opts = new Options();
@@ -74,16 +79,26 @@ public class JsonFn extends SemanticFn {
       if (opts.verbose > 1)
         LogInfo.logs("JoinStream %s %s %s", pathFormula,  path, valueFormula);
 
+      JoinPruner pruner = opts.pruneJoin && ex.context instanceof VegaJsonContextValue
+          ? new JoinPruner((VegaJsonContextValue) ex.context, jsonPath, path) : null;
+      Predicate<JsonValue> filter = pruner == null ? v -> true : pruner;
+      // "*" on a field path picks one of the table fields
+      List<String> fieldNames = ex.context instanceof VegaJsonContextValue
+          ? ((VegaJsonContextValue) ex.context).getFields().stream()
+              .map(VegaJsonContextValue.Field::getName).sorted().collect(Collectors.toList())
+          : Collections.emptyList();
       if (valueFormula instanceof ValueFormula) {
         if ("*".equals(Formulas.getString(valueFormula))) {
-          values = VegaResources.getValues(path, null);
+          values = VegaResources.getValues(path, null, fieldNames, filter);
         } else {
           JsonValue v = (JsonValue)((ValueFormula)valueFormula).value;
-          values = VegaResources.getValues(path, v);
+          values = VegaResources.getValues(path, v, fieldNames, filter);
         }
       } else {
         throw new RuntimeException("Invalid valueFormula: " + valueFormula);
       }
+      if (pruner != null && opts.verbose > 0)
+        pruner.log();
     }
 
     private Derivation derivFromPathValue(String path, JsonValue value) {
@@ -109,6 +124,70 @@ public class JsonFn extends SemanticFn {
     }
   }
 
+  /**
+   * Rejects values that cannot make a useful "set" on the current context:
+   * values the context already has at the path (no-ops), and values that
+   * would fail when executed (the path goes through an array or a non-object,
+   * or names a field that is not in the data).
+   */
+  public static class JoinPruner implements Predicate<JsonValue> {
+    static final AtomicLong totalKept = new AtomicLong();
+    static final AtomicLong totalNoOps = new AtomicLong();
+    static final AtomicLong totalInvalid = new AtomicLong();
+
+    final String jsonPath;
+    final boolean invalidPath;
+    final JsonNode currentValue;  // null if unset
+    final Set<String> fieldNames;  // null if any field is allowed
+    int numKept = 0, numNoOps = 0, numInvalid = 0;
+
+    public JoinPruner(VegaJsonContextValue context, String jsonPath, List<String> path) {
+      this.jsonPath = jsonPath;
+      // Follow the same steps as JsonUtils.setPathValue
+      JsonNode node = context.getJsonNode();
+      boolean invalid = !node.isObject();
+      for (int i = 0; i < path.size() - 1 && node != null && !invalid; i++) {
+        if (path.get(i).endsWith("]")) {
+          invalid = true;
+        } else {
+          node = node.get(path.get(i));
+          if (node != null && !node.isObject()) invalid = true;
+        }
+      }
+      invalidPath = invalid;
+      currentValue = invalid || node == null ? null : node.get(path.get(path.size() - 1));
+
+      Collection<VegaJsonContextValue.Field> fields = context.getFields();
+      if ("field".equals(path.get(path.size() - 1)) && !fields.isEmpty())
+        fieldNames = fields.stream().map(VegaJsonContextValue.Field::getName).collect(Collectors.toSet());
+      else
+        fieldNames = null;
+    }
+
+    @Override
+    public boolean test(JsonValue value) {
+      JsonNode node = value.getJsonNode();
+      if (invalidPath || (fieldNames != null && !fieldNames.contains(node.asText()))) {
+        numInvalid++;
+        totalInvalid.incrementAndGet();
+        return false;
+      }
+      if (node.equals(currentValue)) {
+        numNoOps++;
+        totalNoOps.incrementAndGet();
+        return false;
+      }
+      numKept++;
+      totalKept.incrementAndGet();
+      return true;
+    }
+
+    void log() {
+      LogInfo.logs("JoinPruner %s: kept %d, pruned %d no-ops and %d invalid (total: kept %d, pruned %d no-ops and %d invalid)",
+          jsonPath, numKept, numNoOps, numInvalid, totalKept.get(), totalNoOps.get(), totalInvalid.get());
+    }
+  }
+
   // takes a token and check if it can be a path
   static class IsPathStream extends SingleDerivationStream {
     Set<String> keys;
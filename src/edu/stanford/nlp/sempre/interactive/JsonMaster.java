@@ -1,8 +1,15 @@
 package edu.stanford.nlp.sempre.interactive;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 import edu.stanford.nlp.sempre.*;
 import fig.basic.LogInfo;
@@ -27,14 +34,54 @@ public class JsonMaster extends Master {
 
     @Option(gloss = "initial training set")
     public String dataPath = "";
+
+    @Option(gloss = "number of parse results to cache for repeated queries (0 to disable)")
+    public int parseCacheSize = 1000;
+
+    @Option(gloss = "number of session plots to keep in the session-scoped mode; evicted sessions have to resend the context")
+    public int maxSessionPlots = 10000;
+    @Option(gloss = "drop the plot of a session not used for this many minutes (0 to keep it)")
+    public int sessionPlotMinutes = 60;
   }
 
   public static Options opts = new Options();
 
+  // Plot kept by the server for a session in the session-scoped mode
+  private static class SessionPlot {
+    final VegaJsonContextValue context;
+    final int version;
+
+    SessionPlot(VegaJsonContextValue context, int version) {
+      this.context = context;
+      this.version = version;
+    }
+  }
+
+  // session id -> current plot
+  private final Cache<String, SessionPlot> sessionPlots = newSessionPlots();
+
+  // Ranked derivations of earlier queries, keyed by parseCacheKey.
+  // modelVersion changes whenever the parameters or the grammar may have changed.
+  private final Cache<String, List<Derivation>> parseCache = CacheBuilder.newBuilder()
+      .maximumSize(Math.max(0, opts.parseCacheSize)).build();
+  private final AtomicLong modelVersion = new AtomicLong();
+
   public JsonMaster(Builder builder) {
     super(builder);
   }
 
+  private static Cache<String, SessionPlot> newSessionPlots() {
+    CacheBuilder<Object, Object> cacheBuilder = CacheBuilder.newBuilder().maximumSize(Math.max(0, opts.maxSessionPlots));
+    if (opts.sessionPlotMinutes > 0)
+      cacheBuilder.expireAfterAccess(opts.sessionPlotMinutes, TimeUnit.MINUTES);
+    return cacheBuilder.build();
+  }
+
+  @Override
+  protected void modelChanged() {
+    invalidateParseCache();
+  }
+
   @Override
   protected void printHelp() {
     // interactive commands
@@ -58,6 +105,7 @@ public class JsonMaster extends Master {
   public Response processQuery(Session session, String line) {
     if (session.id.equals("stdin")) {
       if (line.startsWith("(")) {
+        // Regular commands that change the model invalidate the cache through modelChanged()
         return super.processQuery(session, line);
       } else {
         line = fakeQuery(line);
@@ -68,7 +116,10 @@ public class JsonMaster extends Master {
     LogInfo.logs("query %s", line);
     line = line.trim();
     Response response = new Response();
-    handleCommand(session, line, response);
+    // Queries on the same session are serialized, other sessions run concurrently
+    synchronized (session) {
+      handleCommand(session, line, response);
+    }
     LogInfo.end_track();
     return response;
   }
@@ -90,20 +141,41 @@ public class JsonMaster extends Master {
        *     "context": Vega-lite context (object),
        *     "schema": schema map (object),
        *     "random": randomize the order (true | false),
-       *     "amount": number of candidates to request (integer)
+       *     "amount": number of candidates to request (integer),
+       *     "version": plot version, for the session-scoped mode (integer),
+       *     "contextPatch": JSON Patch to the kept plot (array)
        *   }]
        *
        * - If context is an empty object
        *     Parse the command for generating a new plot
        * - Otherwise:
        *     Parse the command, either for modifying the plot or generating a new plot
+       * - If version is given (see getContext), candidates are returned as
+       *     JSON Patches against the context instead of whole plots
        */
       String utt = (String) kv.get("utterance");
-      session.context = VegaJsonContextValue.fromClientRequest(kv);
+      VegaJsonContextValue context = getContext(session, kv, stats);
+      if (context == null) return;
+      session.context = context;
 
       // Create the example
       Example ex = exampleFromUtterance(utt, session);
-      builder.parser.parse(builder.params, ex, false);
+      modelLock.readLock().lock();
+      try {
+        String key = parseCacheKey(ex, session, context);
+        List<Derivation> cached = key != null ? parseCache.getIfPresent(key) : null;
+        if (cached != null) {
+          // random and amount below change the list, so give each query its own copy
+          ex.predDerivations = new ArrayList<>(cached);
+          stats.put("cached", true);
+        } else {
+          builder.parser.parse(builder.params, ex, false);
+          if (key != null && ex.predDerivations != null)
+            parseCache.put(key, new ArrayList<>(ex.predDerivations));
+        }
+      } finally {
+        modelLock.readLock().unlock();
+      }
       stats.size(ex.predDerivations != null ? ex.predDerivations.size() : 0);
       stats.status(InteractiveUtils.getParseStatus(ex));
       session.updateContext();
@@ -118,6 +190,8 @@ public class JsonMaster extends Master {
         int size = ex.predDerivations.size();
         ex.predDerivations = ex.predDerivations.subList(0, amount > size ? size : amount);
       }
+      if (kv.containsKey("version"))
+        stats.put("patches", true);
       response.ex = ex;
     } else if (command.equals("random")) {
       /* Generate random derivations
@@ -127,6 +201,8 @@ public class JsonMaster extends Master {
        *     "amount": amount (int),
        *     "context": Vega-lite context (object),
        *     "schema": schema map (object),
+       *     "version": plot version, for the session-scoped mode (integer),
+       *     "contextPatch": JSON Patch to the kept plot (array)
        *   }]
        *
        * - If context is an empty object or contains "initialContext" key:
@@ -135,14 +211,22 @@ public class JsonMaster extends Master {
        *     Suggest possible modifications to the current plot
        */
       int amount = (int) kv.get("amount");
-      VegaJsonContextValue context = VegaJsonContextValue.fromClientRequest(kv);
+      VegaJsonContextValue context = getContext(session, kv, stats);
+      if (context == null) return;
       session.context = context;
       Example ex = exampleFromUtterance("", session);
-      VegaRandomizer randomizer = new VegaRandomizer(ex, builder);
-      if (context.isInitialContext())
-        response.ex = randomizer.generateInitial(amount);
-      else
-        response.ex = randomizer.generateModification(amount);
+      modelLock.readLock().lock();
+      try {
+        VegaRandomizer randomizer = new VegaRandomizer(ex, builder);
+        if (context.isInitialContext())
+          response.ex = randomizer.generateInitial(amount);
+        else
+          response.ex = randomizer.generateModification(amount);
+      } finally {
+        modelLock.readLock().unlock();
+      }
+      if (kv.containsKey("version"))
+        stats.put("patches", true);
 
     } else if (command.equals("accept")) {
       /* Accept the user's selection.
@@ -156,19 +240,48 @@ public class JsonMaster extends Master {
        *     "targetValue": targetValue (...),
        *     "targetFormula": targetFormula (...),
        *     "issuedQuery": issuedQuery (string; only for type = label),
+       *     "version": plot version, for the session-scoped mode (integer),
+       *     "contextPatch": JSON Patch to the kept plot (array),
+       *     "targetPatch": JSON Patch from the context to the target, instead of targetValue (array)
        *   }]
        *
        * Using lastExample seems unreliable, different tabs etc.
+       * In the session-scoped mode, the target becomes the next version of the kept plot.
        */
       String utt = (String) kv.get("utterance");
-      Object targetValue = kv.get("targetValue");
+      VegaJsonContextValue context = getContext(session, kv, stats);
+      if (context == null) return;
       Example ex = exampleFromUtterance(utt, session);
-      ex.targetValue = new JsonValue(targetValue);
-      ex.context = VegaJsonContextValue.fromClientRequest(kv);
-      builder.parser.parse(builder.params, ex, true);
+      if (kv.containsKey("targetPatch")) {
+        JsonNode targetPatch = Json.getMapper().valueToTree(kv.get("targetPatch"));
+        ex.targetValue = new JsonValue(JsonUtils.applyJsonPatch(context.getJsonNode(), targetPatch));
+      } else {
+        ex.targetValue = new JsonValue(kv.get("targetValue"));
+      }
+      ex.context = context;
+      // Learning changes the parameters
+      modelLock.writeLock().lock();
+      try {
+        invalidateParseCache();
+        builder.parser.parse(builder.params, ex, true);
 
-      if (Master.opts.onlineLearnExamples)
-        learner.onlineLearnExample(ex);
+        if (Master.opts.onlineLearnExamples)
+          learner.onlineLearnExample(ex);
+      } finally {
+        modelLock.writeLock().unlock();
+      }
+      if (kv.containsKey("version")) {
+        // The plot may have been evicted while learning
+        SessionPlot current = sessionPlots.getIfPresent(session.id);
+        if (current == null) {
+          staleVersion(stats, ((Number) kv.get("version")).intValue(), null);
+          return;
+        }
+        SessionPlot plot = new SessionPlot(context.withJsonNode(((JsonValue) ex.targetValue).getJsonNode()),
+            current.version + 1);
+        sessionPlots.put(session.id, plot);
+        stats.put("version", plot.version);
+      }
 
     } else if (command.equals("reject")) {
       /* Reject a plot.
@@ -192,6 +305,63 @@ public class JsonMaster extends Master {
     }
   }
 
+  /**
+   * Context of a request.  Without "version", it is the "context" sent by the client.
+   *
+   * With "version", the server keeps the plot of each session, so the client
+   * only sends "context" (and "schema") when it starts over, and the plot is
+   * stored under that version.  Otherwise the kept plot is used if it is at
+   * "version", and "contextPatch" (if any) moves it to the next version.
+   * Returns null and reports the current version if the client is out of date,
+   * or if the plot was dropped (see maxSessionPlots and sessionPlotMinutes).
+   */
+  private VegaJsonContextValue getContext(Session session, Map<String, Object> kv, QueryStats stats) {
+    if (!kv.containsKey("version"))
+      return VegaJsonContextValue.fromClientRequest(kv);
+    int version = ((Number) kv.get("version")).intValue();
+    SessionPlot plot;
+    if (kv.containsKey("context")) {
+      plot = new SessionPlot(VegaJsonContextValue.fromClientRequest(kv), version);
+    } else {
+      plot = sessionPlots.getIfPresent(session.id);
+      if (plot == null || plot.version != version) {
+        staleVersion(stats, version, plot);
+        return null;
+      }
+    }
+    if (kv.containsKey("contextPatch")) {
+      JsonNode patch = Json.getMapper().valueToTree(kv.get("contextPatch"));
+      VegaJsonContextValue context = plot.context;
+      plot = new SessionPlot(context.withJsonNode(JsonUtils.applyJsonPatch(context.getJsonNode(), patch)),
+          plot.version + 1);
+    }
+    sessionPlots.put(session.id, plot);
+    stats.put("version", plot.version);
+    return plot.context;
+  }
+
+  private static void staleVersion(QueryStats stats, int version, SessionPlot plot) {
+    stats.error(String.format("stale version %d, resend the context", version));
+    stats.put("version", plot == null ? null : plot.version);
+  }
+
+  // Called with the model write lock held (or before changing the model otherwise)
+  private void invalidateParseCache() {
+    modelVersion.incrementAndGet();
+    parseCache.invalidateAll();
+  }
+
+  /**
+   * Parses only depend on the tokens, the plot with its table fields, and
+   * the model and grammar, which are stamped by modelVersion and the number of rules
+   * (induced rules only ever get added).  Null if caching is off.
+   */
+  private String parseCacheKey(Example ex, Session session, VegaJsonContextValue context) {
+    if (opts.parseCacheSize <= 0) return null;
+    return String.join("\t", modelVersion.toString(), String.valueOf(builder.grammar.getRules().size()),
+        opts.independentSessions ? session.id : "", context.getDigest(), String.join(" ", ex.getTokens()));
+  }
+
   private static Example exampleFromUtterance(String utt, Session session) {
     Example.Builder b = new Example.Builder();
     b.setId(session.id);
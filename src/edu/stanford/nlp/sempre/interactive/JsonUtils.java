@@ -3,7 +3,10 @@ package edu.stanford.nlp.sempre.interactive;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 
 import edu.stanford.nlp.sempre.ActionFormula;
 import edu.stanford.nlp.sempre.Example;
@@ -101,6 +104,36 @@ public class JsonUtils  {
     node.put(lastPath, value);
   }
 
+  /**
+   * Like setPathValue, but leaves |context| unchanged: only the objects along
+   * |path| are copied (shallowly), and every other subtree is shared with |context|.
+   * Neither tree may be modified in place afterwards.
+   */
+  public static ObjectNode withPathValue(ObjectNode context, String path, JsonNode value) {
+    List<String> jsonPath = Arrays.asList(path.split("\\."));
+    List<String> objectPath = jsonPath.subList(1, jsonPath.size()-1);
+    String lastPath = jsonPath.get(jsonPath.size()-1);
+    ObjectNode root = shallowCopy(context);
+    ObjectNode node = root;
+
+    for (String name : objectPath) {
+      if (name.endsWith("]"))
+        throw new RuntimeException("not implemented: assign value to array");
+      JsonNode child = node.get(name);
+      ObjectNode copy = child == null ? node.objectNode() : shallowCopy((ObjectNode) child);
+      node.set(name, copy);
+      node = copy;
+    }
+    node.set(lastPath, value);
+    return root;
+  }
+
+  public static ObjectNode shallowCopy(ObjectNode node) {
+    ObjectNode copy = node.objectNode();
+    copy.setAll(node);
+    return copy;
+  }
+
   public static JsonNode getPathValue(JsonNode context, String path) {
     List<String> jsonPath = Arrays.asList(path.split("\\."));
     List<String> objectPath = jsonPath.subList(1, jsonPath.size());
@@ -119,4 +152,164 @@ public class JsonUtils  {
     }
     return node;
   }
+
+  /**
+   * Whether |a| and |b| are equal, ignoring object fields at |ignoredPaths| (e.g., "$.description").
+   * Field order does not matter.
+   */
+  public static boolean equalsIgnoring(JsonNode a, JsonNode b, Set<String> ignoredPaths) {
+    if (ignoredPaths == null || ignoredPaths.isEmpty())
+      return a == null ? b == null : a.equals(b);
+    return equalsIgnoring(a, b, "$", ignoredPaths);
+  }
+
+  private static boolean equalsIgnoring(JsonNode a, JsonNode b, String path, Set<String> ignoredPaths) {
+    if (a == null || b == null) return a == b;
+    if (!a.isObject() || !b.isObject()) return a.equals(b);
+    Set<String> names = new HashSet<>();
+    a.fieldNames().forEachRemaining(names::add);
+    b.fieldNames().forEachRemaining(names::add);
+    for (String name : names) {
+      String childPath = path + "." + name;
+      if (ignoredPaths.contains(childPath)) continue;
+      if (!equalsIgnoring(a.get(name), b.get(name), childPath, ignoredPaths)) return false;
+    }
+    return true;
+  }
+
+  /**
+   * JSON Patch (RFC 6902) that turns |source| into |target|.
+   * Objects are diffed field by field; changed arrays and values are replaced whole.
+   */
+  public static ArrayNode jsonPatch(JsonNode source, JsonNode target) {
+    ArrayNode patch = Json.getMapper().createArrayNode();
+    jsonPatch(source, target, "", patch);
+    return patch;
+  }
+
+  private static void jsonPatch(JsonNode source, JsonNode target, String pointer, ArrayNode patch) {
+    if (source == target || source.equals(target)) return;
+    if (!source.isObject() || !target.isObject()) {
+      patch.addObject().put("op", "replace").put("path", pointer).set("value", target);
+      return;
+    }
+    Iterator<Entry<String, JsonNode>> fields = source.fields();
+    while (fields.hasNext()) {
+      Entry<String, JsonNode> field = fields.next();
+      String childPointer = pointer + "/" + escapePointer(field.getKey());
+      JsonNode targetChild = target.get(field.getKey());
+      if (targetChild == null)
+        patch.addObject().put("op", "remove").put("path", childPointer);
+      else
+        jsonPatch(field.getValue(), targetChild, childPointer, patch);
+    }
+    fields = target.fields();
+    while (fields.hasNext()) {
+      Entry<String, JsonNode> field = fields.next();
+      if (!source.has(field.getKey()))
+        patch.addObject().put("op", "add").put("path", pointer + "/" + escapePointer(field.getKey())).set("value", field.getValue());
+    }
+  }
+
+  /**
+   * Apply a JSON Patch with add, replace and remove operations to |source|.
+   * Like withPathValue, only the containers along each path are copied.
+   */
+  public static JsonNode applyJsonPatch(JsonNode source, JsonNode patch) {
+    JsonNode result = source;
+    for (JsonNode op : patch) {
+      String kind = op.path("op").asText();
+      if (!kind.equals("add") && !kind.equals("replace") && !kind.equals("remove"))
+        throw new RuntimeException("unsupported JSON Patch op: " + op);
+      List<String> tokens = new ArrayList<>();
+      String pointer = op.path("path").asText();
+      if (!pointer.isEmpty()) {
+        if (!pointer.startsWith("/"))
+          throw new RuntimeException("invalid JSON pointer: " + pointer);
+        for (String token : pointer.substring(1).split("/", -1))
+          tokens.add(token.replace("~1", "/").replace("~0", "~"));
+      }
+      JsonNode value = kind.equals("remove") ? null : op.get("value");
+      if (!kind.equals("remove") && value == null)
+        throw new RuntimeException("JSON Patch op without value: " + op);
+      result = withPatched(result, tokens, 0, kind, value);
+    }
+    return result;
+  }
+
+  private static JsonNode withPatched(JsonNode node, List<String> tokens, int i, String kind, JsonNode value) {
+    if (i == tokens.size())
+      return value;  // replace (or add) the whole node
+    String token = tokens.get(i);
+    boolean last = i == tokens.size() - 1;
+    if (node instanceof ObjectNode) {
+      ObjectNode copy = shallowCopy((ObjectNode) node);
+      if (last && kind.equals("remove")) {
+        if (copy.remove(token) == null)
+          throw new RuntimeException("JSON Patch: no such field: " + token);
+      } else {
+        JsonNode child = copy.get(token);
+        if (child == null && !(last && kind.equals("add")))
+          throw new RuntimeException("JSON Patch: no such field: " + token);
+        copy.set(token, withPatched(child, tokens, i + 1, kind, value));
+      }
+      return copy;
+    } else if (node instanceof ArrayNode) {
+      ArrayNode copy = ((ArrayNode) node).arrayNode();
+      copy.addAll((ArrayNode) node);
+      boolean insert = last && kind.equals("add");
+      int index = token.equals("-") ? copy.size() : -1;
+      if (token.matches("0|[1-9][0-9]{0,8}"))
+        index = Integer.parseInt(token);
+      // Only add can use the index past the end
+      if (index < 0 || index > copy.size() || (index == copy.size() && !insert))
+        throw new RuntimeException("JSON Patch: index out of bounds: " + token);
+      if (last && kind.equals("remove")) {
+        copy.remove(index);
+      } else if (insert) {
+        copy.insert(index, value);
+      } else {
+        copy.set(index, withPatched(copy.get(index), tokens, i + 1, kind, value));
+      }
+      return copy;
+    }
+    throw new RuntimeException("JSON Patch: cannot follow " + token + " into " + node);
+  }
+
+  private static String escapePointer(String key) {
+    return key.replace("~", "~0").replace("/", "~1");
+  }
+
+  /**
+   * Compact digest of |node| that does not depend on the order of object fields.
+   */
+  public static String canonicalDigest(JsonNode node) {
+    Hasher hasher = Hashing.murmur3_128().newHasher();
+    putCanonical(node, hasher);
+    return hasher.hash().toString();
+  }
+
+  private static void putCanonical(JsonNode node, Hasher hasher) {
+    if (node == null) {
+      hasher.putChar('_');
+    } else if (node.isObject()) {
+      List<String> names = new ArrayList<>();
+      node.fieldNames().forEachRemaining(names::add);
+      Collections.sort(names);
+      hasher.putChar('{');
+      for (String name : names) {
+        hasher.putInt(name.length()).putString(name);
+        putCanonical(node.get(name), hasher);
+      }
+      hasher.putChar('}');
+    } else if (node.isArray()) {
+      hasher.putChar('[');
+      for (JsonNode child : node)
+        putCanonical(child, hasher);
+      hasher.putChar(']');
+    } else {
+      String text = node.toString();
+      hasher.putChar('v').putInt(text.length()).putString(text);
+    }
+  }
 }
@@ -0,0 +1,85 @@
+package edu.stanford.nlp.sempre.interactive;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies in nanoseconds with log-linear buckets, in the
+ * style of HdrHistogram: values below 2^SUB_BITS are exact, and every
+ * power of two above is split into 2^SUB_BITS buckets, so percentiles are
+ * within 1% of the recorded value.  Recording is lock-free.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BITS = 7;
+  private static final int SUB_COUNT = 1 << SUB_BITS;
+
+  private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS + 1) * SUB_COUNT);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder total = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  private static int bucket(long value) {
+    if (value < SUB_COUNT) return (int) value;
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+    return (shift + 1) * SUB_COUNT + (int) ((value >>> shift) - SUB_COUNT);
+  }
+
+  // Largest value that falls into |bucket|
+  private static long highestValue(int bucket) {
+    if (bucket < SUB_COUNT) return bucket;
+    int shift = bucket / SUB_COUNT - 1;
+    long mantissa = bucket % SUB_COUNT + SUB_COUNT;
+    return ((mantissa + 1) << shift) - 1;
+  }
+
+  public void record(long nanos) {
+    if (nanos < 0) nanos = 0;
+    counts.incrementAndGet(bucket(nanos));
+    count.increment();
+    total.add(nanos);
+    max.accumulateAndGet(nanos, Math::max);
+  }
+
+  public long getCount() { return count.sum(); }
+  public long getMax() { return max.get(); }
+  public double getMean() {
+    long n = count.sum();
+    return n == 0 ? 0 : total.sum() / (double) n;
+  }
+
+  /**
+   * Latency at |percentile| (0 to 100) in nanoseconds.
+   */
+  public long getPercentile(double percentile) {
+    long n = 0;
+    for (int i = 0; i < counts.length(); i++)
+      n += counts.get(i);
+    if (n == 0) return 0;
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+    long seen = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      seen += counts.get(i);
+      if (seen >= rank)
+        return Math.min(highestValue(i), getMax());
+    }
+    return getMax();
+  }
+
+  /**
+   * Summary in milliseconds, for logs and machine-readable reports.
+   */
+  public Map<String, Object> toMap() {
+    Map<String, Object> map = new LinkedHashMap<>();
+    map.put("count", getCount());
+    map.put("meanMs", getMean() / 1e6);
+    map.put("p50Ms", getPercentile(50) / 1e6);
+    map.put("p95Ms", getPercentile(95) / 1e6);
+    map.put("p99Ms", getPercentile(99) / 1e6);
+    map.put("p999Ms", getPercentile(99.9) / 1e6);
+    map.put("maxMs", getMax() / 1e6);
+    return map;
+  }
+}
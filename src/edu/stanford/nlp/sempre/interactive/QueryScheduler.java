@@ -0,0 +1,184 @@
+package edu.stanford.nlp.sempre.interactive;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fig.basic.LogInfo;
+import fig.basic.Option;
+
+/**
+ * Shared, bounded worker pool that runs the queries of InteractiveServer
+ * under a deadline.
+ *
+ * A query that does not finish before its deadline is cancelled (interrupted).
+ * The deadline counts from when the request arrived, so time spent waiting
+ * for an HTTP thread is included.
+ * With admission control, a query is rejected right away if the queries ahead
+ * of it are expected to use up its deadline, or if the queue is full.
+ * Keeps counters and a moving average of the service time.
+ */
+public class QueryScheduler {
+  public static class Options {
+    @Option(gloss = "Number of query worker threads (-1: InteractiveServer.numThreads)")
+    public int numThreads = -1;
+    @Option(gloss = "Maximum number of queries waiting for a worker")
+    public int maxQueueSize = 100;
+    @Option(gloss = "Reject queries early if the backlog would exceed their deadline")
+    public boolean admissionControl = true;
+    @Option(gloss = "Log the scheduler metrics every this many queries (0: never)")
+    public int logEvery = 100;
+  }
+
+  public static Options opts = new Options();
+
+  /**
+   * Thrown when a query is not admitted; the server answers with 503.
+   */
+  public static class RejectedQueryException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public RejectedQueryException(String message) {
+      super(message);
+    }
+  }
+
+  private final int numThreads;
+  private final ThreadPoolExecutor pool;
+  private final AtomicInteger numRunning = new AtomicInteger();
+  private final AtomicLong numSubmitted = new AtomicLong();
+  private final AtomicLong numCompleted = new AtomicLong();
+  private final AtomicLong numRejected = new AtomicLong();
+  private final AtomicLong numTimedOut = new AtomicLong();
+  // Exponential moving average of the time a query spends running
+  private double avgServiceSeconds = 0;
+
+  public QueryScheduler() {
+    this(opts.numThreads > 0 ? opts.numThreads : InteractiveServer.opts.numThreads);
+  }
+
+  public QueryScheduler(int numThreads) {
+    this.numThreads = numThreads;
+    AtomicInteger threadCount = new AtomicInteger();
+    this.pool = new ThreadPoolExecutor(numThreads, numThreads, 0, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(opts.maxQueueSize), r -> {
+          Thread t = new Thread(r, "QueryScheduler-" + threadCount.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        });
+  }
+
+  /**
+   * Run |task| on a worker and wait for at most |timeoutSeconds|.
+   */
+  public <T> T call(Callable<T> task, double timeoutSeconds)
+      throws RejectedQueryException, InterruptedException, ExecutionException, TimeoutException {
+    return call(task, System.nanoTime(), timeoutSeconds);
+  }
+
+  /**
+   * Run |task| on a worker and wait until |timeoutSeconds| after
+   * |arrivalNanos| (System.nanoTime() when the request arrived).
+   */
+  public <T> T call(Callable<T> task, long arrivalNanos, double timeoutSeconds)
+      throws RejectedQueryException, InterruptedException, ExecutionException, TimeoutException {
+    long count = numSubmitted.incrementAndGet();
+    if (opts.logEvery > 0 && count % opts.logEvery == 0)
+      LogInfo.logs("QueryScheduler: %s", metrics());
+
+    double waited = (System.nanoTime() - arrivalNanos) / 1.0e9;
+    if (waited >= timeoutSeconds) {
+      numRejected.incrementAndGet();
+      throw new RejectedQueryException(String.format("waited %.1fs before reaching the scheduler, deadline %.1fs", waited, timeoutSeconds));
+    }
+    if (opts.admissionControl) {
+      double expectedWait = expectedWaitSeconds();
+      if (waited + expectedWait > timeoutSeconds) {
+        numRejected.incrementAndGet();
+        throw new RejectedQueryException(String.format("expected wait %.1fs (after %.1fs) exceeds deadline %.1fs", expectedWait, waited, timeoutSeconds));
+      }
+    }
+
+    Future<T> future;
+    try {
+      future = pool.submit(() -> {
+        numRunning.incrementAndGet();
+        long startTime = System.nanoTime();
+        try {
+          return task.call();
+        } finally {
+          numRunning.decrementAndGet();
+          recordServiceTime((System.nanoTime() - startTime) / 1.0e9);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      numRejected.incrementAndGet();
+      throw new RejectedQueryException("query queue is full (" + opts.maxQueueSize + ")");
+    }
+
+    try {
+      T result = future.get(arrivalNanos + (long) (timeoutSeconds * 1e9) - System.nanoTime(), TimeUnit.NANOSECONDS);
+      numCompleted.incrementAndGet();
+      return result;
+    } catch (TimeoutException e) {
+      numTimedOut.incrementAndGet();
+      throw e;
+    } finally {
+      future.cancel(true);
+    }
+  }
+
+  private synchronized void recordServiceTime(double seconds) {
+    avgServiceSeconds = avgServiceSeconds == 0 ? seconds : 0.9 * avgServiceSeconds + 0.1 * seconds;
+  }
+
+  private synchronized double getAvgServiceSeconds() {
+    return avgServiceSeconds;
+  }
+
+  /**
+   * Expected time before a new query starts running.
+   */
+  public double expectedWaitSeconds() {
+    int ahead = queueDepth() + numRunning.get() - numThreads + 1;
+    if (ahead <= 0) return 0;
+    return Math.ceil(ahead / (double) numThreads) * getAvgServiceSeconds();
+  }
+
+  public int queueDepth() {
+    return pool.getQueue().size();
+  }
+
+  /**
+   * Number of queries that can be running or queued at once; more are rejected.
+   */
+  public int capacity() {
+    return numThreads + queueDepth() + pool.getQueue().remainingCapacity();
+  }
+
+  public Map<String, Object> metrics() {
+    Map<String, Object> metrics = new LinkedHashMap<>();
+    metrics.put("threads", numThreads);
+    metrics.put("queueDepth", queueDepth());
+    metrics.put("running", numRunning.get());
+    metrics.put("submitted", numSubmitted.get());
+    metrics.put("completed", numCompleted.get());
+    metrics.put("rejected", numRejected.get());
+    metrics.put("timedOut", numTimedOut.get());
+    metrics.put("avgServiceMs", String.format("%.1f", getAvgServiceSeconds() * 1000));
+    return metrics;
+  }
+
+  public void shutdown() {
+    pool.shutdownNow();
+  }
+}
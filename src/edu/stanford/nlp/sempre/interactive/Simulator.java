@@ -4,6 +4,7 @@ import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.Closeable;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -15,12 +16,18 @@ import java.net.URLEncoder;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.zip.GZIPInputStream;
@@ -83,11 +90,11 @@ public class Simulator implements Runnable {
 
   @Option
   public static String serverURL = "http://localhost:8410";
-  @Option
+  @Option(gloss = "Number of concurrent virtual users (with useThreads)")
   public static int numThreads = 1;
   @Option
   public static int verbose = 1;
-  @Option
+  @Option(gloss = "Send queries from numThreads virtual users instead of one at a time")
   public static boolean useThreads = false;
   @Option
   public static long maxQueries = Long.MAX_VALUE;
@@ -95,10 +102,76 @@ public class Simulator implements Runnable {
   public static String reqParams = "grammar=0&cite=0&learn=0";
   @Option
   public static List<String> logFiles = null;
+  @Option(gloss = "Open-loop mode: issue this many queries per second regardless of responses (0 for closed loop)")
+  public static double arrivalRate = 0;
+  @Option(gloss = "Number of queries at the start of each log file to leave out of the latency report")
+  public static int warmupQueries = 0;
+  @Option(gloss = "Write the latency report as JSON to this file (default: load.json in the execution directory)")
+  public static String reportPath = null;
+  @Option(gloss = "Stop waiting for the queries of a log file after this many minutes")
+  public static int timeoutMinutes = 600;
+
+  /**
+   * Latency and errors of the measured queries, by command type ("q", "accept", ...).
+   */
+  static class LoadReport {
+    final LatencyHistogram all = new LatencyHistogram();
+    final Map<String, LatencyHistogram> latencies = new ConcurrentSkipListMap<>();
+    final Map<String, LongAdder> errors = new ConcurrentSkipListMap<>();
+    final AtomicLong firstStart = new AtomicLong(Long.MAX_VALUE);
+    final AtomicLong lastEnd = new AtomicLong(Long.MIN_VALUE);
+
+    void record(String command, long startTime, long endTime, boolean ok) {
+      firstStart.accumulateAndGet(startTime, Math::min);
+      lastEnd.accumulateAndGet(endTime, Math::max);
+      all.record(endTime - startTime);
+      latencies.computeIfAbsent(command, k -> new LatencyHistogram()).record(endTime - startTime);
+      if (!ok)
+        errors.computeIfAbsent(command, k -> new LongAdder()).increment();
+    }
+
+    Map<String, Object> toMap() {
+      Map<String, Object> map = new LinkedHashMap<>();
+      double seconds = all.getCount() == 0 ? 0 : (lastEnd.get() - firstStart.get()) / 1e9;
+      map.put("mode", !useThreads ? "sequential" : arrivalRate > 0 ? "open" : "closed");
+      map.put("users", useThreads ? numThreads : 1);
+      map.put("arrivalRate", arrivalRate);
+      map.put("warmupQueries", warmupQueries);
+      map.put("seconds", seconds);
+      map.put("throughput", seconds > 0 ? all.getCount() / seconds : 0);
+      Map<String, Object> allMap = all.toMap();
+      allMap.put("errors", errors.values().stream().mapToLong(LongAdder::sum).sum());
+      map.put("all", allMap);
+      Map<String, Object> commands = new LinkedHashMap<>();
+      for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+        Map<String, Object> commandMap = entry.getValue().toMap();
+        LongAdder numErrors = errors.get(entry.getKey());
+        commandMap.put("errors", numErrors == null ? 0 : numErrors.sum());
+        commands.put(entry.getKey(), commandMap);
+      }
+      map.put("commands", commands);
+      return map;
+    }
+
+    @SuppressWarnings("unchecked")
+    void write() {
+      Map<String, Object> map = toMap();
+      LogInfo.begin_track("Load report");
+      LogInfo.logs("%s queries in %.3f s: %.2f queries/s", all.getCount(), map.get("seconds"), map.get("throughput"));
+      LogInfo.logs("all: %s", map.get("all"));
+      for (Map.Entry<String, Object> entry : ((Map<String, Object>) map.get("commands")).entrySet())
+        LogInfo.logs("%s: %s", entry.getKey(), entry.getValue());
+      LogInfo.end_track();
+      String path = reportPath != null ? reportPath : Execution.getFile("load.json");
+      if (path != null)
+        Json.prettyWriteValueHard(new File(path), map);
+    }
+  }
 
   public void readQueries() {
     // T.printAllRules();
     // A.assertAll();
+    LoadReport report = new LoadReport();
     for (String fileName : logFiles) {
       long startTime = System.nanoTime();
       Stream<String> stream;
@@ -108,63 +181,143 @@ public class Simulator implements Runnable {
         else
           stream = Files.lines(Paths.get(fileName));
 
-        List<String> lines = stream.collect(Collectors.toList());
-        LogInfo.logs("Reading %s (%d lines)", fileName, lines.size());
-        int numLinesRead = 0;
-        // ExecutorService executor = new ThreadPoolExecutor(numThreads,
-        // numThreads,
-        // 15000, TimeUnit.MILLISECONDS,
-        // new LinkedBlockingQueue<Runnable>());
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-
-        for (String l : lines) {
-          numLinesRead++;
-          if (numLinesRead > maxQueries)
-            break;
-          LogInfo.logs("Line %d", numLinesRead);
-          if (!useThreads) {
-            executeLine(l);
-          } else {
-            Future<?> future = executor.submit(() -> executeLine(l));
-            try {
-              future.get(10, TimeUnit.MINUTES);
-            } catch (Throwable t) {
-              t.printStackTrace();
-            } finally {
-              future.cancel(true); // may or may not desire this
-              long endTime = System.nanoTime();
-              LogInfo.logs("Took %d ns or %.4f s", (endTime - startTime), (endTime - startTime) / 1.0e9);
-            }
+        List<Map<String, Object>> queries = stream.limit(maxQueries).map(Simulator::readLine)
+            .filter(Objects::nonNull).collect(Collectors.toList());
+        LogInfo.logs("Reading %s (%d queries)", fileName, queries.size());
+
+        if (!useThreads) {
+          for (int i = 0; i < queries.size(); i++) {
+            if (verbose >= 2) LogInfo.logs("Line %d", i + 1);
+            executeQuery(queries.get(i), System.nanoTime(), i < warmupQueries ? null : report);
           }
+        } else if (arrivalRate > 0) {
+          runOpenLoop(queries, report);
+        } else {
+          runClosedLoop(queries, report);
         }
+        long endTime = System.nanoTime();
+        LogInfo.logs("Took %d ns or %.4f s", (endTime - startTime), (endTime - startTime) / 1.0e9);
       } catch (IOException e) {
         e.printStackTrace();
       }
 
     }
+    report.write();
     SimulationAnalyzer.flush();
   }
 
-  static void executeLine(String l) {
-    Map<String, Object> json = null;
+  /**
+   * Each virtual user replays the queries of its sessions in order, and sends
+   * its next query as soon as the previous one is answered.
+   */
+  void runClosedLoop(List<Map<String, Object>> queries, LoadReport report) {
+    List<List<Integer>> users = new ArrayList<>();
+    for (int u = 0; u < numThreads; u++)
+      users.add(new ArrayList<>());
+    for (int i = 0; i < queries.size(); i++)
+      users.get(Math.floorMod(getSessionId(queries.get(i)).hashCode(), numThreads)).add(i);
+
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    for (List<Integer> user : users) {
+      executor.submit(() -> {
+        for (int i : user)
+          executeQuery(queries.get(i), System.nanoTime(), i < warmupQueries ? null : report);
+      });
+    }
+    awaitTermination(executor);
+  }
+
+  /**
+   * Queries are issued on a fixed schedule of arrivalRate per second, with up to
+   * numThreads in flight.  Latency is measured from the scheduled time, so it
+   * includes the time a query waits when the server falls behind.
+   */
+  void runOpenLoop(List<Map<String, Object>> queries, LoadReport report) {
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    long startTime = System.nanoTime();
+    for (int i = 0; i < queries.size(); i++) {
+      long scheduledTime = startTime + (long) (i * 1e9 / arrivalRate);
+      long delay;
+      while ((delay = scheduledTime - System.nanoTime()) > 0)
+        LockSupport.parkNanos(delay);
+      Map<String, Object> query = queries.get(i);
+      LoadReport queryReport = i < warmupQueries ? null : report;
+      executor.submit(() -> executeQuery(query, scheduledTime, queryReport));
+    }
+    awaitTermination(executor);
+  }
+
+  private static void awaitTermination(ExecutorService executor) {
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(timeoutMinutes, TimeUnit.MINUTES)) {
+        LogInfo.logs("Simulator: timed out after %d minutes", timeoutMinutes);
+        executor.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  static Map<String, Object> readLine(String l) {
     try {
-      json = Json.readMapHard(l);
+      return Json.readMapHard(l);
     } catch (RuntimeException e) {
       LogInfo.logs("Json cannot be read from %s: %s", l, e.toString());
-      return;
+      return null;
     }
+  }
+
+  static Object getCommand(Map<String, Object> json) {
     Object command = json.get("q");
     if (command == null) // to be backwards compatible
       command = json.get("log");
+    return command;
+  }
+
+  static String getSessionId(Map<String, Object> json) {
     Object sessionId = json.get("sessionId");
     if (sessionId == null) // to be backwards compatible
       sessionId = json.get("id");
+    return String.valueOf(sessionId);
+  }
+
+  // "q", "accept", ... of a query such as ["q", {...}]
+  static String getCommandType(String command) {
+    try {
+      List<?> args = Json.readValueHard(command, List.class);
+      return args.isEmpty() ? "other" : String.valueOf(args.get(0));
+    } catch (RuntimeException e) {
+      return "other";
+    }
+  }
 
+  // Sends one logged query, and records its latency from |startTime| in |report| unless it is null
+  static void executeQuery(Map<String, Object> json, long startTime, LoadReport report) {
+    Object command = getCommand(json);
+    if (command == null) {
+      LogInfo.logs("No query in %s", json);
+      return;
+    }
+    String response = null;
+    long endTime;
     try {
-      String response = sempreQuery(command.toString(), sessionId.toString());
-      SimulationAnalyzer.addStats(json, response);
+      response = sempreQuery(command.toString(), getSessionId(json));
     } catch (Throwable t) {
       t.printStackTrace();
+    } finally {
+      // Only the round trip is timed, not the bookkeeping below
+      endTime = System.nanoTime();
+    }
+    if (report != null)
+      report.record(getCommandType(command.toString()), startTime, endTime, response != null);
+    if (response != null) {
+      try {
+        SimulationAnalyzer.addStats(json, response);
+      } catch (Throwable t) {
+        t.printStackTrace();
+      }
     }
   }
 
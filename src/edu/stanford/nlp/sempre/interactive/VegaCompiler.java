@@ -0,0 +1,21 @@
+package edu.stanford.nlp.sempre.interactive;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import edu.stanford.nlp.sempre.interactive.VegaEngine.VegaResponse;
+
+/**
+ * Compiles Vega-lite specs into Vega (and SVG), either in-process with
+ * Nashorn (VegaEnginePool) or in an external process (VegaSidecar).
+ * Implementations must be safe to call from several threads.
+ */
+public interface VegaCompiler {
+  /**
+   * Compile |vlSpec|; the SVG is only rendered if the result may differ from |contextResponse|.
+   */
+  VegaResponse compileVegaLite(JsonNode vlSpec, VegaResponse contextResponse);
+
+  default VegaResponse compileVegaLite(JsonNode vlSpec) {
+    return compileVegaLite(vlSpec, null);
+  }
+}
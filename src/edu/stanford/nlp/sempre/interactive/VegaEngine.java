@@ -1,15 +1,19 @@
 package edu.stanford.nlp.sempre.interactive;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 import edu.stanford.nlp.sempre.Json;
 import fig.basic.LogInfo;
 import fig.basic.Option;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.Writer;
-import java.util.HashMap;
-import java.util.Map;
-import javax.script.Bindings;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
 import javax.script.Invocable;
 import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
@@ -29,6 +33,9 @@ public class VegaEngine {
 
     @Option(gloss = "Cache vega compilation calls")
     public boolean useCache = true;
+
+    @Option(gloss = "Approximate size limit of the compilation cache (in MB)")
+    public int cacheMaxMB = 256;
   }
 
   public static Options opts = new Options();
@@ -45,6 +52,36 @@ public class VegaEngine {
     public final JsonNode vegaSpec;
     public final VegaImage image;
     public final String message;
+    private String digest;
+
+    /**
+     * Compact identifier of this response, used in cache keys.
+     */
+    public String digest() {
+      if (digest == null) {
+        digest = Hashing.murmur3_128().newHasher()
+            .putString(JsonUtils.canonicalDigest(vegaSpec), StandardCharsets.UTF_8)
+            .putString(String.valueOf(image), StandardCharsets.UTF_8)
+            .putString(String.valueOf(message), StandardCharsets.UTF_8)
+            .hash().toString();
+      }
+      return digest;
+    }
+
+    /**
+     * Rough number of bytes held by this response.
+     */
+    int approxBytes() {
+      int chars = message == null ? 0 : message.length();
+      if (image != null) {
+        chars += image.svg == null ? 0 : image.svg.length();
+        chars += image.background == null ? 0 : image.background.length();
+      }
+      // A JsonNode tree takes several times the size of its serialization
+      if (vegaSpec != null)
+        chars += 4 * vegaSpec.toString().length();
+      return 2 * chars;
+    }
 
     public boolean isClean() {
       return !VegaEngine.isCompilerIssue(message);
@@ -78,6 +115,19 @@ public class VegaEngine {
     }
     public final String svg;
     public final String background;
+    // Computed lazily; threads that race on it compute the same value
+    private volatile HashCode svgHash;
+
+    /**
+     * 128-bit hash of the SVG, computed once.  Comparing images by hash avoids
+     * scanning the (often megabyte-sized) SVG of the context for every candidate.
+     */
+    HashCode svgHash() {
+      HashCode hash = svgHash;
+      if (hash == null && svg != null)
+        svgHash = hash = Hashing.murmur3_128().hashString(svg);
+      return hash;
+    }
 
     @Override
     public boolean equals(Object obj) {
@@ -85,20 +135,64 @@ public class VegaEngine {
       if (!(obj instanceof VegaImage)) return false;
       VegaImage other = (VegaImage) obj;
       if (svg == null && other.svg != null) return false;
-      if (svg != null && !svg.equals(other.svg)) return false;
+      if (svg != null && other.svg == null) return false;
+      if (svg != null && (svg.length() != other.svg.length() || !svgHash().equals(other.svgHash()))) return false;
       if (background == null && other.background != null) return false;
       if (background != null && !background.equals(other.background)) return false;
       return true;
     }
 
+    @Override
+    public int hashCode() {
+      return Objects.hash(svgHash(), background);
+    }
+
     @Override
     public String toString() {
       return "Background=" + background + ", SVG=" + svg;
     }
   }
 
+  // Only the thread that currently holds this engine may use it
   private final ScriptEngine scriptEngine;
-  public final Map<String, VegaResponse> cache = new HashMap<String, VegaResponse>();
+
+  // Shared by all engines; keyed on digests of the spec and the context response.
+  // Held in a separate class so that it is built after the options are parsed.
+  private static class CompileCache {
+    static final Cache<String, VegaResponse> cache = CacheBuilder.newBuilder()
+        .maximumWeight(opts.cacheMaxMB * 1024L * 1024L)
+        .weigher((String key, VegaResponse vr) -> key.length() * 2 + vr.approxBytes())
+        .recordStats()
+        .build();
+  }
+
+  public static CacheStats cacheStats() {
+    return CompileCache.cache.stats();
+  }
+
+  /**
+   * Cache key for compiling |vlSpec| against |contextResponse|, or null if caching is off.
+   */
+  static String cacheKey(JsonNode vlSpec, VegaResponse contextResponse) {
+    if (!opts.useCache) return null;
+    return JsonUtils.canonicalDigest(vlSpec) + "|" + (contextResponse == null ? "" : contextResponse.digest());
+  }
+
+  static VegaResponse getCached(String cacheKey) {
+    return cacheKey == null ? null : CompileCache.cache.getIfPresent(cacheKey);
+  }
+
+  static void putCached(String cacheKey, VegaResponse vr) {
+    if (cacheKey != null)
+      CompileCache.cache.put(cacheKey, vr);
+  }
+
+  public static void logCacheStats() {
+    Cache<String, VegaResponse> cache = CompileCache.cache;
+    CacheStats stats = cache.stats();
+    LogInfo.logs("VegaEngine cache: %d entries, %d hits, %d misses, %d evictions",
+        cache.size(), stats.hitCount(), stats.missCount(), stats.evictionCount());
+  }
 
   /**
    * Check if compiler complained.
@@ -118,6 +212,7 @@ public class VegaEngine {
       scriptEngine.eval(new java.io.FileReader("plot/js-lib/synchronous-promise.js"));
       scriptEngine.eval(new java.io.FileReader("plot/js-lib/vega.js"));
       scriptEngine.eval(new java.io.FileReader("plot/js-lib/vega-lite.js"));
+      scriptEngine.eval(HELPER_SCRIPT);
       if (opts.verbose >= 1) {
         LogInfo.logs("Vega version: %s", scriptEngine.eval("vega['version']"));
         LogInfo.logs("Vega-lite version: %s", scriptEngine.eval("vl['version']"));
@@ -131,30 +226,34 @@ public class VegaEngine {
     }
   }
 
-  public static final String COMPILE_SCRIPT =
-      "var vega_spec = vl.compile(JSON.parse(vl_str)).spec;" +
-      "var vega_spec_str = JSON.stringify(vega_spec);";
-  public static final String SVG_SCRIPT =
-      "var view = new vega.View(vega.parse(vega_spec, {logLevel: vega.Info})).renderer('none').initialize();" +
-      "var background = view._background;" +
-      "var svg = null;" +
-      "view.toSVG().then(function(x){ svg = x });";
+  /**
+   * Helper functions loaded once per engine.  All per-request state lives in
+   * function locals, so no global bindings are touched by a compile call.
+   */
+  public static final String HELPER_SCRIPT =
+      "function sempreCompile(vl_str) {" +
+      "  return JSON.stringify(vl.compile(JSON.parse(vl_str)).spec);" +
+      "}" +
+      "function sempreRender(vega_spec_str) {" +
+      "  var view = new vega.View(vega.parse(JSON.parse(vega_spec_str), {logLevel: vega.Info})).renderer('none').initialize();" +
+      "  var result = {svg: null, background: view._background};" +
+      "  view.toSVG().then(function(x){ result.svg = x });" +
+      "  return Java.to([result.svg, result.background], 'java.lang.String[]');" +
+      "}";
 
   /**
    * Compile a Vega-lite spec into Vega, then into SVG if compilation worked.
+   *
+   * Not thread-safe: use a VegaEnginePool to share engines across threads.
    */
   public VegaResponse compileVegaLite(JsonNode vlSpec, VegaResponse contextResponse) {
+    String cacheKey = cacheKey(vlSpec, contextResponse);
+    VegaResponse cached = getCached(cacheKey);
+    if (cached != null)
+      return cached;
     String vlSpecStr = Json.writeValueAsStringHard(vlSpec);
-    String cacheKey = vlSpecStr + "|||" + contextResponse;  // Okay this is a silly hack
-    if (opts.useCache) {
-      if (cache.containsKey(cacheKey)) {
-        return cache.get(cacheKey);
-      }
-    }
     Invocable inv = (Invocable) scriptEngine;
     ScriptContext sc = scriptEngine.getContext();
-    Bindings bindings = sc.getBindings(ScriptContext.ENGINE_SCOPE);
-    bindings.put("vl_str", Json.writeValueAsStringHard(vlSpec));
     StringWriter sw = new StringWriter();
     PrintWriter pw = new PrintWriter(sw);
     Writer oldWriter = sc.getWriter();
@@ -163,43 +262,32 @@ public class VegaEngine {
     JsonNode vegaSpec = null;
     String svg = null;
     String background = null;
-    long t0, t1;
     try {
-      scriptEngine.eval(COMPILE_SCRIPT);
-      String vegaStr = (String) scriptEngine.get("vega_spec_str");
+      String vegaStr = (String) inv.invokeFunction("sempreCompile", vlSpecStr);
       vegaSpec = Json.readValueHard(vegaStr, JsonNode.class);
       String message = sw.toString();
       vr = new VegaResponse(vegaSpec, null, message);
       if (vr.isGoodChange(contextResponse) && opts.compileToSVG) {
         // Abort if we already know this is not a good change
         // i.e. compiler complained or vegaSpec is identical
-        scriptEngine.eval(SVG_SCRIPT);
+        String[] rendered = (String[]) inv.invokeFunction("sempreRender", vegaStr);
         String msg2 = sw.toString();
         if (opts.verbose >= 2) {
           LogInfo.logs("SVG Rendering Logs: " + msg2);
         }
-        svg = (String) scriptEngine.get("svg");
-        background = (String) scriptEngine.get("background");
+        svg = rendered[0];
+        background = rendered[1];
         vr = new VegaResponse(vegaSpec, new VegaImage(svg, background) , message);
       }
-    } catch (ScriptException e) {
+    } catch (ScriptException | NoSuchMethodException e) {
       if (opts.verbose >= 2) {
         e.printStackTrace();
       }
       vr = new VegaResponse(vegaSpec, new VegaImage(svg, background), e.getMessage());
     } finally {
       sc.setWriter(oldWriter);
-      // Just to be safe, remove bindings
-      bindings.remove("vl_spec");
-      bindings.remove("vega_spec");
-      bindings.remove("vega_spec_str");
-      bindings.remove("view");
-      bindings.remove("svg");
-      bindings.remove("background");
-    }
-    if (opts.useCache) {
-      cache.put(cacheKey, vr);
     }
+    putCached(cacheKey, vr);
     return vr;
   }
 
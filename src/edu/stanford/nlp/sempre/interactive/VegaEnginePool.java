@@ -0,0 +1,94 @@
+package edu.stanford.nlp.sempre.interactive;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import edu.stanford.nlp.sempre.interactive.VegaEngine.VegaResponse;
+import fig.basic.LogInfo;
+import fig.basic.Option;
+
+/**
+ * A pool of VegaEngines so that several threads can compile plots at once.
+ *
+ * Each engine loads vega.js and vega-lite.js once and is then reused.
+ * An engine is confined to the thread that checked it out until it is released.
+ * Engines are created lazily, up to the pool size.
+ */
+public class VegaEnginePool implements VegaCompiler {
+  public static class Options {
+    @Option(gloss = "Maximum number of engines (-1: one per InteractiveServer thread)")
+    public int poolSize = -1;
+    @Option(gloss = "Number of engines to load when the pool is created")
+    public int numPrewarmed = 1;
+  }
+
+  public static Options opts = new Options();
+
+  private final int capacity;
+  private final BlockingQueue<VegaEngine> idle;
+  private final AtomicInteger numCreated = new AtomicInteger();
+
+  public VegaEnginePool() {
+    this(opts.poolSize > 0 ? opts.poolSize : InteractiveServer.opts.numThreads);
+  }
+
+  public VegaEnginePool(int capacity) {
+    this.capacity = Math.max(1, capacity);
+    this.idle = new LinkedBlockingQueue<>(this.capacity);
+    int numPrewarmed = Math.min(opts.numPrewarmed, this.capacity);
+    for (int i = 0; i < numPrewarmed; i++) {
+      numCreated.incrementAndGet();
+      idle.add(new VegaEngine());
+    }
+    LogInfo.logs("VegaEnginePool: %d / %d engines loaded", numPrewarmed, this.capacity);
+  }
+
+  /**
+   * Take an idle engine, creating one if the pool is not full yet.
+   * Blocks until an engine is released otherwise.
+   */
+  public VegaEngine checkout() {
+    VegaEngine engine = idle.poll();
+    if (engine != null) return engine;
+    while (true) {
+      int n = numCreated.get();
+      if (n >= capacity) break;
+      if (numCreated.compareAndSet(n, n + 1)) {
+        if (VegaEngine.opts.verbose >= 1)
+          LogInfo.logs("VegaEnginePool: creating engine %d / %d", n + 1, capacity);
+        return new VegaEngine();
+      }
+    }
+    try {
+      return idle.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting for a VegaEngine", e);
+    }
+  }
+
+  /**
+   * Return an engine obtained from checkout().
+   */
+  public void release(VegaEngine engine) {
+    if (engine != null)
+      idle.offer(engine);
+  }
+
+  @Override
+  public VegaResponse compileVegaLite(JsonNode vlSpec, VegaResponse contextResponse) {
+    VegaEngine engine = checkout();
+    try {
+      return engine.compileVegaLite(vlSpec, contextResponse);
+    } finally {
+      release(engine);
+    }
+  }
+
+  public int capacity() { return capacity; }
+  public int numCreated() { return numCreated.get(); }
+  public int numIdle() { return idle.size(); }
+}
@@ -2,11 +2,13 @@ package edu.stanford.nlp.sempre.interactive;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 
 import edu.stanford.nlp.sempre.ActionFormula;
 import edu.stanford.nlp.sempre.BooleanValue;
@@ -38,19 +40,31 @@ public class VegaExecutor extends Executor {
     public int verbose = 0;
     @Option(gloss = "Compile vega")
     public boolean compileVega = true;
+    @Option(gloss = "Compile vega in an external process (VegaSidecar) instead of Nashorn; requests are only batched when candidates are executed in parallel (ExecutionStage.numThreads > 1)")
+    public boolean useSidecar = false;
+    @Option(gloss = "Reject candidates that equal the context (up to inertPaths) without compiling them")
+    public boolean detectNoOps = true;
+    @Option(gloss = "Paths whose value does not affect the compiled plot")
+    public Set<String> inertPaths = Sets.newHashSet("$.$schema", "$.description");
+    @Option(gloss = "Copy only the objects along the edited path and share the rest of the spec with the context")
+    public boolean copyOnWrite = true;
   }
 
   public static Options opts = new Options();
 
-  private VegaEngine vegaEngine;
+  private VegaCompiler vegaCompiler;
   private VegaResources vegaResource;
 
   public VegaExecutor() {
     if (opts.compileVega)
-      vegaEngine = new VegaEngine();
+      vegaCompiler = opts.useSidecar ? new VegaSidecar() : new VegaEnginePool();
     vegaResource = new VegaResources();
   }
 
+  // Candidates only read the context, and compilation goes through a thread-safe VegaCompiler
+  @Override
+  public boolean isThreadSafe() { return true; }
+
   @Override
   public Response execute(Formula formula, ContextValue context) {
     VegaJsonContextValue jsonContext;
@@ -113,9 +127,14 @@ public class VegaExecutor extends Executor {
         Formula pathf = f.args.get(1);
         Value value = ((ValueFormula) f.args.get(2)).value;
         String jsonPath = Formulas.getString(pathf);
-        ObjectNode objNode = (ObjectNode) jsonContext.cloneJsonNode();
-        JsonUtils.setPathValue(objNode, jsonPath, ((JsonValue)value).getJsonNode());
-        result = objNode;
+        JsonNode newValue = ((JsonValue)value).getJsonNode();
+        if (opts.copyOnWrite) {
+          result = JsonUtils.withPathValue((ObjectNode) jsonContext.getJsonNode(), jsonPath, newValue);
+        } else {
+          ObjectNode objNode = (ObjectNode) jsonContext.cloneJsonNode();
+          JsonUtils.setPathValue(objNode, jsonPath, newValue);
+          result = objNode;
+        }
       } else if (id.equals("init")) {
         // read the formula
         JsonNode mark = ((JsonValue) ((ValueFormula) f.args.get(1)).value).getJsonNode();
@@ -129,7 +148,8 @@ public class VegaExecutor extends Executor {
           encoding.set(channelKey, ((JsonValue) formula.value).getJsonNode());
         }
         // Create the nodes
-        ObjectNode objNode = (ObjectNode) jsonContext.cloneJsonNode();
+        ObjectNode objNode = opts.copyOnWrite ? JsonUtils.shallowCopy((ObjectNode) jsonContext.getJsonNode())
+            : (ObjectNode) jsonContext.cloneJsonNode();
         objNode.put("$schema", "https://vega.github.io/schema/vega-lite/v2.json");
         objNode.put("mark", mark);
         objNode.put("encoding", encoding);
@@ -149,9 +169,13 @@ public class VegaExecutor extends Executor {
     // TODO: perhaps should do some basic schema validation
     if (!opts.compileVega) return result;
 
+    // Structural fast path: most rejected candidates do not change the spec at all
+    if (opts.detectNoOps && JsonUtils.equalsIgnoring(result, jsonContext.getJsonNode(), opts.inertPaths))
+      throw new RuntimeException("Output was unchanged");
+
     // Compile Vega-lite spec
-    VegaResponse contextResponse = vegaEngine.compileVegaLite(jsonContext.getJsonNode());
-    VegaResponse vr = vegaEngine.compileVegaLite(result, contextResponse);
+    VegaResponse contextResponse = jsonContext.getCompiledContext(vegaCompiler);
+    VegaResponse vr = vegaCompiler.compileVegaLite(result, contextResponse);
 
     if (opts.verbose >= 2) {
       LogInfo.logs("VegaContext: %s", contextResponse.vegaSpec);
@@ -163,6 +187,8 @@ public class VegaExecutor extends Executor {
       }
     } else if (opts.verbose >= 1)
       LogInfo.logs("Compiler message: %s", vr.message);
+    if (opts.verbose >= 1 && VegaEngine.opts.useCache)
+      VegaEngine.logCacheStats();
 
     if (!vr.isGoodChange(contextResponse)) {
       if (vr.isClean()) {
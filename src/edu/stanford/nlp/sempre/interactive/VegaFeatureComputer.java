@@ -2,6 +2,10 @@ package edu.stanford.nlp.sempre.interactive;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.common.cache.CacheBuilder;
 
 import edu.stanford.nlp.sempre.*;
 import fig.basic.LispTree;
@@ -51,6 +55,74 @@ public class VegaFeatureComputer implements FeatureComputer {
     }
   }
 
+  // Feature blocks that depend only on the example and a path (or value type).
+  // They are built once per example and added to each derivation as a whole.
+  private static class ExampleFeatures {
+    final Map<String, FeatureVector> lexValueType = new ConcurrentHashMap<>();
+    final Map<String, FeatureVector> lexPathPattern = new ConcurrentHashMap<>();
+  }
+
+  // Examples are compared by identity
+  private final Map<Example, ExampleFeatures> exampleFeatures = CacheBuilder.newBuilder()
+      .weakKeys().maximumSize(1000).<Example, ExampleFeatures>build().asMap();
+  // pathPattern features do not depend on the example
+  private final Map<String, FeatureVector> pathPatternFeatures = new ConcurrentHashMap<>();
+
+  private ExampleFeatures getExampleFeatures(Example ex) {
+    return exampleFeatures.computeIfAbsent(ex, k -> new ExampleFeatures());
+  }
+
+  private static String[] pathTokens(String path) {
+    return path.split("[.]");
+  }
+
+  private static FeatureVector makeLexValueTypeFeatures(Example ex, String schemaType) {
+    FeatureVector features = new FeatureVector();
+    for (String lemma: ex.getLemmaTokens())
+      features.add("lexValueType", "lemma=" + lemma + ",valueType=" + schemaType);
+    return features;
+  }
+
+  private static FeatureVector makePathPatternFeatures(String path) {
+    FeatureVector features = new FeatureVector();
+    features.add("pathPattern", "path=" + path);
+    for (String token: pathTokens(path)) {
+      features.add("pathPattern", "token=" + token);
+    }
+    return features;
+  }
+
+  private static FeatureVector makeLexPathPatternFeatures(Example ex, String path) {
+    FeatureVector features = new FeatureVector();
+    String[] pathTokens = pathTokens(path);
+    int numExactMatch = 0;
+    int numSoftMatch = 0;
+    for (String lemma: ex.getLemmaTokens()) {
+      features.add("lexPathPattern", "lemma=" + lemma + ",path=" + path);
+      for (String token: pathTokens) {
+        features.add("lexPathPattern", "lemma=" + lemma + ",token=" + token);
+        if (lemma.equals(token))
+          numExactMatch += 1;
+        if (token.toLowerCase().contains(lemma.toLowerCase()))
+          numSoftMatch += 1;
+      }
+    }
+    features.add("lexPathPattern", "numExactMatch", numExactMatch);
+    features.add("lexPathPattern", "numSoftMatch", numSoftMatch);
+    return features;
+  }
+
+  // The path of a "set" formula, without building its LispTree
+  private static String getPath(Formula formula) {
+    if (formula instanceof ActionFormula) {
+      Formula pathFormula = ((ActionFormula) formula).args.get(1);
+      if (pathFormula instanceof ValueFormula && ((ValueFormula<?>) pathFormula).value instanceof NameValue)
+        return ((NameValue) ((ValueFormula<?>) pathFormula).value).id;
+    }
+    LispTree tree = formula.toLispTree();
+    return tree.child(2).value;
+  }
+
   private void extractRuleFeatures(Example ex, Derivation deriv) {
     // Indicators for each JSON type
     if (deriv.formula instanceof ValueFormula) {
@@ -61,8 +133,8 @@ public class VegaFeatureComputer implements FeatureComputer {
           deriv.addFeature("valueType", schemaType);
         }
         if (FeatureExtractor.containsDomain("lexValueType")) {
-          for (String lemma: ex.getLemmaTokens())
-            deriv.addFeature("lexValueType", "lemma=" + lemma + ",valueType=" + schemaType);
+          deriv.addFeatures(getExampleFeatures(ex).lexValueType
+              .computeIfAbsent(String.valueOf(schemaType), k -> makeLexValueTypeFeatures(ex, schemaType)));
         }
       }
     }
@@ -74,30 +146,13 @@ public class VegaFeatureComputer implements FeatureComputer {
       // Note: doing it here because "*" expansion doesn't happen until after we join
       // If we change that, should look for lhs == "$PathPattern" instead
       // But this lets us hold onto everything until we type-check
-      LispTree tree = deriv.formula.toLispTree();
-      String path = tree.child(2).value;
-      String[] pathTokens = path.split("[.]");
+      String path = getPath(deriv.formula);
       if (FeatureExtractor.containsDomain("pathPattern")){
-        deriv.addFeature("pathPattern", "path=" + path);
-        for (String token: pathTokens) {
-          deriv.addFeature("pathPattern", "token=" + token);
-        }
+        deriv.addFeatures(pathPatternFeatures.computeIfAbsent(path, VegaFeatureComputer::makePathPatternFeatures));
       }
       if (FeatureExtractor.containsDomain("lexPathPattern")) {
-        int numExactMatch = 0;
-        int numSoftMatch = 0;
-        for (String lemma: ex.getLemmaTokens()) {
-          deriv.addFeature("lexPathPattern", "lemma=" + lemma + ",path=" + path);
-          for (String token: pathTokens) {
-            deriv.addFeature("lexPathPattern", "lemma=" + lemma + ",token=" + token);
-            if (lemma.equals(token))
-              numExactMatch += 1;
-            if (token.toLowerCase().contains(lemma.toLowerCase()))
-              numSoftMatch += 1;
-          }
-        }
-        deriv.addFeature("lexPathPattern", "numExactMatch", numExactMatch);
-        deriv.addFeature("lexPathPattern", "numSoftMatch", numSoftMatch);
+        deriv.addFeatures(getExampleFeatures(ex).lexPathPattern
+            .computeIfAbsent(path, k -> makeLexPathPatternFeatures(ex, path)));
       }
     }
   }
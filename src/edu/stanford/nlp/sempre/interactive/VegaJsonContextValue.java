@@ -3,9 +3,11 @@ package edu.stanford.nlp.sempre.interactive;
 import java.util.*;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
 import edu.stanford.nlp.sempre.ContextValue;
 import edu.stanford.nlp.sempre.Json;
+import edu.stanford.nlp.sempre.interactive.VegaEngine.VegaResponse;
 import fig.basic.LogInfo;
 import fig.basic.MapUtils;
 
@@ -17,6 +19,9 @@ import fig.basic.MapUtils;
 public class VegaJsonContextValue extends ContextValue {
 
   final JsonNode jsonNode;
+  // Compiled form of jsonNode, shared by all candidates executed against this context
+  private volatile VegaResponse compiledContext;
+  private volatile String digest;
 
   public VegaJsonContextValue(Object jsonObj) {
     super(null, null, new ArrayList<Exchange>(), null);
@@ -30,6 +35,19 @@ public class VegaJsonContextValue extends ContextValue {
 //    LogInfo.logs("JsonContextValue %s", jsonNode);
   }
 
+  private VegaJsonContextValue(JsonNode jsonNode, Map<String, Field> fields) {
+    super(null, null, new ArrayList<Exchange>(), null);
+    this.jsonNode = jsonNode;
+    this.fields = fields;
+  }
+
+  /**
+   * A context with the same table fields and a different plot.
+   */
+  public VegaJsonContextValue withJsonNode(JsonNode newJsonNode) {
+    return new VegaJsonContextValue(newJsonNode, fields);
+  }
+
   @SuppressWarnings("unchecked")
   public static VegaJsonContextValue fromClientRequest(Map<String, Object> kv) {
     VegaJsonContextValue context = new VegaJsonContextValue(kv.get("context"));
@@ -52,6 +70,38 @@ public class VegaJsonContextValue extends ContextValue {
     return jsonNode.deepCopy();
   }
 
+  /**
+   * Get the compiled Vega spec and image of the whole JSON, compiling it on first use.
+   */
+  public VegaResponse getCompiledContext(VegaCompiler compiler) {
+    VegaResponse response = compiledContext;
+    if (response == null) {
+      synchronized (this) {
+        if (compiledContext == null)
+          compiledContext = compiler.compileVegaLite(jsonNode);
+        response = compiledContext;
+      }
+    }
+    return response;
+  }
+
+  /**
+   * Digest of the plot and the table fields that does not depend on the order of object fields.
+   */
+  public String getDigest() {
+    if (digest == null) {
+      ObjectNode node = Json.getMapper().createObjectNode();
+      node.set("plot", jsonNode);
+      ObjectNode fieldsNode = node.putObject("fields");
+      for (Field f : getFields()) {
+        fieldsNode.putObject(f.name).put("type", f.type).put("uniqueCount", f.uniqueCount)
+            .put("allCount", f.allCount).put("probablyYears", f.probablyYears);
+      }
+      digest = JsonUtils.canonicalDigest(node);
+    }
+    return digest;
+  }
+
   @Override
   public String toString() {
     return jsonNode.toString();
@@ -90,6 +140,7 @@ public class VegaJsonContextValue extends ContextValue {
 
   public VegaJsonContextValue setFields(Map<String, Map<String, Object>> schema) {
     fields = new HashMap<>();
+    digest = null;
     for (Map<String, Object> schemaItem : schema.values()) {
       if ("_id".equals(schemaItem.get("name"))) continue;     // Ignore dummy field
       Field field = new Field(schemaItem);
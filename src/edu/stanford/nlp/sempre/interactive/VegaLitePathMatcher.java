@@ -4,7 +4,6 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
-import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -13,9 +12,15 @@ import java.util.stream.Stream;
  */
 public class VegaLitePathMatcher {
 
-  // Map from a key to all the paths containing that key
-  private Map<String, List<List<String>>> index;
   private List<List<String>> paths;
+  // Interned path keys
+  private Map<String, Integer> keyIds;
+  // Distinct paths, sorted by their concatenated string representation
+  private List<List<String>> sortedPaths;
+  // sortedPaths[i] as key ids
+  private int[][] pathKeyIds;
+  // Bitset (over sortedPaths) of the paths containing each key
+  private long[][] postings;
 
   public VegaLitePathMatcher(String filePath) throws IOException {
     // load paths from file
@@ -32,18 +37,40 @@ public class VegaLitePathMatcher {
 
   private void buildIndex() {
     paths = paths.stream().filter(p -> !p.isEmpty()).collect(Collectors.toList());
-    index = new HashMap<>();
-    for (List<String> path : paths) {
-      for (String key : path) {
-        List<List<String>> matches = index.computeIfAbsent(key, k -> new ArrayList<>());
-        matches.add(path);
+
+    // sort the distinct paths once, so that matches come out sorted
+    Map<List<String>, String> joined = new HashMap<>();
+    for (List<String> path : paths)
+      joined.computeIfAbsent(path, l -> String.join("", l));
+    sortedPaths = new ArrayList<>(joined.keySet());
+    sortedPaths.sort(Comparator.comparing(joined::get));
+
+    keyIds = new HashMap<>();
+    pathKeyIds = new int[sortedPaths.size()][];
+    for (int i = 0; i < sortedPaths.size(); i++) {
+      List<String> path = sortedPaths.get(i);
+      pathKeyIds[i] = new int[path.size()];
+      for (int j = 0; j < path.size(); j++) {
+        Integer id = keyIds.get(path.get(j));
+        if (id == null) {
+          id = keyIds.size();
+          keyIds.put(path.get(j), id);
+        }
+        pathKeyIds[i][j] = id;
       }
     }
+
+    int numWords = (sortedPaths.size() + 63) / 64;
+    postings = new long[keyIds.size()][numWords];
+    for (int i = 0; i < pathKeyIds.length; i++) {
+      for (int id : pathKeyIds[i])
+        postings[id][i >> 6] |= 1L << i;
+    }
   }
 
   // return all allowed path elements
   public Set<String> pathKeys() {
-    return index.keySet();
+    return keyIds.keySet();
   }
 
   public List<List<String>> getPaths() {
@@ -54,23 +81,16 @@ public class VegaLitePathMatcher {
    * Given a list of keys, return all paths containing those keys (not necessarily in the order provided).
    */
   public List<List<String>> match(List<String> keys) {
-    // get partial matches: anything with at least one of the keys
     if (keys == null || keys.size() == 0)
       return paths;
-    List<List<String>> partialMatches = keys.stream()
-            .flatMap(key -> index.getOrDefault(key, new ArrayList<>()).stream()).collect(Collectors.toList());
-
-    // filter for paths which contain ALL the keys
-    Set<List<String>> matchSet = partialMatches
-            .stream().filter(match -> keys.stream().allMatch(match::contains))
-            .collect(Collectors.toSet());
-
-    List<List<String>> matches = new ArrayList<>(matchSet);
-
-    // sort the lists by their concatenated string representation
-    Function<List<String>, String> join = l -> l.stream().collect(Collectors.joining());
-    matches.sort(Comparator.comparing(join));
-
+    int[] ids = toKeyIds(keys);
+    List<List<String>> matches = new ArrayList<>();
+    if (ids == null) return matches;
+    long[] words = intersect(ids);
+    for (int w = 0; w < words.length; w++) {
+      for (long bits = words[w]; bits != 0; bits &= bits - 1)
+        matches.add(sortedPaths.get((w << 6) + Long.numberOfTrailingZeros(bits)));
+    }
     return matches;
   }
 
@@ -78,8 +98,57 @@ public class VegaLitePathMatcher {
    * Given a list of keys, return all paths containing those keys in that order
    */
   public List<List<String>> orderedMatch(List<String> keys) {
-    // after removing everything but the keys, equal to the keys
-    return match(keys).stream().filter(
-        s -> s.stream().filter(keys::contains).collect(Collectors.toList()).equals(keys)).collect(Collectors.toList());
+    if (keys == null || keys.size() == 0)
+      return match(keys);
+    int[] ids = toKeyIds(keys);
+    List<List<String>> matches = new ArrayList<>();
+    if (ids == null) return matches;
+    long[] words = intersect(ids);
+    for (int w = 0; w < words.length; w++) {
+      for (long bits = words[w]; bits != 0; bits &= bits - 1) {
+        int i = (w << 6) + Long.numberOfTrailingZeros(bits);
+        if (isOrdered(pathKeyIds[i], ids))
+          matches.add(sortedPaths.get(i));
+      }
+    }
+    return matches;
+  }
+
+  // Returns null if some key is not in any path.
+  private int[] toKeyIds(List<String> keys) {
+    int[] ids = new int[keys.size()];
+    for (int i = 0; i < ids.length; i++) {
+      Integer id = keyIds.get(keys.get(i));
+      if (id == null) return null;
+      ids[i] = id;
+    }
+    return ids;
+  }
+
+  private long[] intersect(int[] ids) {
+    long[] words = postings[ids[0]].clone();
+    for (int i = 1; i < ids.length; i++) {
+      long[] posting = postings[ids[i]];
+      for (int w = 0; w < words.length; w++)
+        words[w] &= posting[w];
+    }
+    return words;
+  }
+
+  // after removing everything but the keys, equal to the keys
+  private static boolean isOrdered(int[] path, int[] keys) {
+    int j = 0;
+    for (int id : path) {
+      if (!contains(keys, id)) continue;
+      if (j == keys.length || keys[j] != id) return false;
+      j++;
+    }
+    return j == keys.length;
+  }
+
+  private static boolean contains(int[] ids, int id) {
+    for (int x : ids)
+      if (x == id) return true;
+    return false;
   }
 }
@@ -153,7 +153,7 @@ public class VegaRandomizer {
       // Pick a path and value
       List<String> path = randomChoice(paths);
       List<JsonValue> possibleValues = VegaResources.getValues(path, null);
-      for (JsonSchema schema : VegaResources.vegaSchema.schemas(path)) {
+      for (VegaSchemaIndex.LeafSchema schema : VegaResources.getSchemas(path)) {
         String type = schema.types().get(0);
         if ("number".equals(type))
           possibleValues.addAll(smallNumbers);
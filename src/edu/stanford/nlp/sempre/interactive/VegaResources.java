@@ -1,6 +1,7 @@
 package edu.stanford.nlp.sempre.interactive;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
@@ -16,12 +17,14 @@ import com.google.common.collect.Lists;
 
 import edu.stanford.nlp.sempre.Json;
 import edu.stanford.nlp.sempre.JsonValue;
+import edu.stanford.nlp.sempre.interactive.VegaSchemaIndex.LeafSchema;
 import fig.basic.IOUtils;
 import fig.basic.LogInfo;
 import fig.basic.MapUtils;
 import fig.basic.Option;
 
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
 
 
 /**
@@ -37,6 +40,8 @@ public class VegaResources {
     @Option(gloss = "File containing all the colors") String colorFile;
     @Option(gloss = "File containing initial plot templates") String initialTemplates;
     @Option(gloss = "verbosity") int verbose = 0;
+    @Option(gloss = "Reuse the paths and enum maps derived from the schema if the schema and excludedPaths are unchanged") boolean useSnapshot = true;
+    @Option(gloss = "File for the snapshot (default: intOutputPath/vegaResource.snapshot); vegaResource.nodes.json is only written when the snapshot is rebuilt") String snapshotPath;
   }
   public static Options opts = new Options();
   private final Path savePath = Paths.get(JsonMaster.opts.intOutputPath, "vegaResource");
@@ -46,6 +51,7 @@ public class VegaResources {
   private static List<JsonSchema> descendants;
 
   public static JsonSchema vegaSchema;
+  private static VegaSchemaIndex schemaIndex;
 
   private static Map<String, Set<String>> enumValueToTypes;
   private static Map<String, Set<List<String>>> enumValueToPaths;
@@ -70,23 +76,50 @@ public class VegaResources {
         LogInfo.end_track();
       }
 
-      List<JsonSchema> allDescendants = vegaSchema.descendants();
-      descendants = allDescendants.stream().filter(s -> s.node().has("type")).collect(Collectors.toList());
-      LogInfo.logs("Got %d descendants, %d typed", allDescendants.size(), descendants.size());
-      Json.prettyWriteValueHard(new File(savePath.toString()+".nodes.json"),
-        descendants.stream().map(t -> t.node()).collect(Collectors.toList()));
+      Path snapshotFile = Strings.isNullOrEmpty(opts.snapshotPath) ? Paths.get(savePath.toString() + ".snapshot")
+          : Paths.get(opts.snapshotPath);
+      String snapshotKey = null;
+      VegaResourcesSnapshot snapshot = null;
+      if (opts.useSnapshot && !Strings.isNullOrEmpty(opts.vegaSchema)) {
+        snapshotKey = VegaResourcesSnapshot.inputKey(new File(opts.vegaSchema), opts.excludedPaths);
+        snapshot = VegaResourcesSnapshot.read(snapshotFile, snapshotKey);
+      }
 
-      filteredPaths = allSimplePaths(descendants);
-      LogInfo.logs("Got %d distinct simple path not containing %s", filteredPaths.size(), opts.excludedPaths);
+      if (snapshot != null) {
+        filteredPaths = snapshot.simplePaths;
+        enumValueToTypes = snapshot.enumValueToTypes;
+        enumValueToPaths = snapshot.enumValueToPaths;
+        LogInfo.logs("Loaded %d simple paths and %d enum values from %s", filteredPaths.size(), enumValueToTypes.size(), snapshotFile);
+        // The typed descendants (.nodes.json) need the schema walk, so that dump is
+        // left as it was written when the snapshot was built
+        writeDumps();
+      } else {
+        List<JsonSchema> allDescendants = vegaSchema.descendants();
+        descendants = allDescendants.stream().filter(s -> s.node().has("type")).collect(Collectors.toList());
+        LogInfo.logs("Got %d descendants, %d typed", allDescendants.size(), descendants.size());
+        Json.prettyWriteValueHard(new File(savePath.toString()+".nodes.json"),
+          descendants.stream().map(t -> t.node()).collect(Collectors.toList()));
+
+        filteredPaths = allSimplePaths(descendants);
+        LogInfo.logs("Got %d distinct simple path not containing %s", filteredPaths.size(), opts.excludedPaths);
+
+        // generate valueToTypes and valueToSet, for enum types
+        generateValueMaps();
+        LogInfo.logs("gathering valueToTypes: %d distinct enum values", enumValueToTypes.size());
+        writeDumps();
+
+        if (snapshotKey != null) {
+          try {
+            new VegaResourcesSnapshot(filteredPaths, enumValueToTypes, enumValueToPaths).write(snapshotFile, snapshotKey);
+            LogInfo.logs("Wrote snapshot to %s", snapshotFile);
+          } catch (IOException e) {
+            LogInfo.logs("Failed to write snapshot to %s: %s", snapshotFile, e);
+          }
+        }
+      }
       allPathsMatcher = new VegaLitePathMatcher(filteredPaths);
-      Json.prettyWriteValueHard(new File(savePath.toString()+".simplePaths.json"), filteredPaths);
-
-      // generate valueToTypes and valueToSet, for enum types
-      generateValueMaps();
-      LogInfo.logs("gathering valueToTypes: %d distinct enum values", enumValueToTypes.size());
-      Json.prettyWriteValueHard(new File(savePath.toString()+".enums.json"),
-        enumValueToTypes.keySet().stream().collect(Collectors.toList())
-      );
+      // After a snapshot hit, paths are resolved on first use, so startup skips the schema walk
+      schemaIndex = new VegaSchemaIndex(vegaSchema, snapshot != null ? Collections.emptyList() : filteredPaths);
 
       if (!Strings.isNullOrEmpty(opts.colorFile)) {
         colorSet = Json.readMapHard(String.join("\n", IOUtils.readLines(opts.colorFile))).keySet();
@@ -107,6 +140,13 @@ public class VegaResources {
     }
   }
 
+  private void writeDumps() {
+    Json.prettyWriteValueHard(new File(savePath.toString()+".simplePaths.json"), filteredPaths);
+    Json.prettyWriteValueHard(new File(savePath.toString()+".enums.json"),
+      enumValueToTypes.keySet().stream().collect(Collectors.toList())
+    );
+  }
+
   private List<List<String>> allSimplePaths(List<JsonSchema> descendents) {
     LinkedHashSet<List<String>> simplePaths = descendents.stream()
       .map(s -> s.simplePath()).collect(Collectors.toCollection(LinkedHashSet::new));
@@ -131,32 +171,26 @@ public class VegaResources {
   }
 
   private static boolean checkType(List<String> path, JsonValue value) {
-    JsonSchema jsonSchema = VegaResources.vegaSchema;
-    List<JsonSchema> pathSchemas = jsonSchema.schemas(path);
+    List<LeafSchema> pathSchemas = schemaIndex.lookup(path);
     String stringValue = value.getJsonNode().asText();
+    String valueType = value.getSchemaType();
 
-    for (JsonSchema schema : pathSchemas) {
-      String valueType = value.getSchemaType();
+    for (LeafSchema schema : pathSchemas) {
       List<String> schemaTypes = schema.types();
       if (opts.verbose > 1)
-        System.out.println(String.format("checkType: path: %s | simplePath: %s | types: %s | valueType: %s", path, schema.simplePath(), schemaTypes, valueType));
+        System.out.println(String.format("checkType: path: %s | simplePath: %s | types: %s | valueType: %s", path, schema.schema.simplePath(), schemaTypes, valueType));
       for (String schemaType : schemaTypes) {
 
-        List<String> simplePath = schema.simplePath();
-        String last = simplePath.get(simplePath.size() - 1);
-
-        if (schemaType.equals("string") && (last.endsWith("color") || last.endsWith("Color")
-            || last.equals("fill")
-            || last.equals("stroke") || last.equals("background"))) {
+        if (schemaType.equals("string") && schema.isColor) {
           return valueType.equals("color");
         }
 
-        if (schemaType.equals("string") && last.equals("field")) {
+        if (schemaType.equals("string") && schema.isField) {
           return valueType.equals("field");
         }
 
-        if (schemaType.equals("string") && schema.isEnum()) {
-          return schema.enums().contains(stringValue);
+        if (schemaType.equals("string") && schema.enumSet != null) {
+          return schema.enumSet.contains(stringValue);
         }
 
         if (valueType.equals(schemaType)) {
@@ -164,23 +198,33 @@ public class VegaResources {
         }
 
         if (schemaType.equals(JsonSchema.NOTYPE))
-          throw new RuntimeException("JsonFn: schema has no type: " + schema);
+          throw new RuntimeException("JsonFn: schema has no type: " + schema.schema);
       }
     }
     return false;
   }
 
   public static List<JsonValue> getValues(List<String> path, JsonValue value) {
+    return getValues(path, value, Collections.emptyList(), v -> true);
+  }
+
+  /**
+   * Same as getValues(path, value), but fields are picked from |fieldNames|
+   * (the table fields of the context; a placeholder if empty), and only the
+   * values accepted by |filter| are considered (applied before picking one at random).
+   */
+  public static List<JsonValue> getValues(List<String> path, JsonValue value, Collection<String> fieldNames,
+      Predicate<JsonValue> filter) {
     if (value != null) {
-      if (checkType(path, value)) {
+      if (checkType(path, value) && filter.test(value)) {
         return Lists.newArrayList(value);
       } else {
         return Lists.newArrayList();
       }
     }
     List<JsonValue> values = new ArrayList<>();
-    List<JsonSchema> schemas = vegaSchema.schemas(path);
-    for (JsonSchema schema : schemas) {
+    List<LeafSchema> schemas = schemaIndex.lookup(path);
+    for (LeafSchema schema : schemas) {
       for (String type : schema.types()) {
         if (opts.verbose > 0)
           LogInfo.logs("getValues %s %s", type, path.toString());
@@ -188,20 +232,18 @@ public class VegaResources {
         if (type.equals(JsonSchema.NOTYPE)) {
           continue;
         } else if (type.equals("string")) {
-
-          List<String> simplePath = schema.simplePath();
-          String last = simplePath.get(simplePath.size() - 1);
-
-          if (last.endsWith("color") || last.endsWith("Color")
-            || last.equals("fill")
-            || last.equals("stroke") || last.equals("background")) {
+          if (schema.isColor) {
             values.add(new JsonValue("red").withSchemaType("string"));
             values.add(new JsonValue("blue").withSchemaType("string"));
             values.add(new JsonValue("green").withSchemaType("string"));
-          } else if (last.equals("field")) {
-            values.add(new JsonValue("fieldName").withSchemaType("string"));
-          } else if (schema.isEnum()) {
-            values.addAll(schema.enums().stream().map(s -> new JsonValue(s).withSchemaType("enum"))
+          } else if (schema.isField) {
+            if (fieldNames.isEmpty())
+              values.add(new JsonValue("fieldName").withSchemaType("string"));
+            else
+              values.addAll(fieldNames.stream().map(s -> new JsonValue(s).withSchemaType("field"))
+                .collect(Collectors.toList()));
+          } else if (schema.enums != null) {
+            values.addAll(schema.enums.stream().map(s -> new JsonValue(s).withSchemaType("enum"))
               .collect(Collectors.toList()));
           } else {
             values.add(new JsonValue("XX").withSchemaType(type));
@@ -216,10 +258,16 @@ public class VegaResources {
       }
     }
 
+    values.removeIf(filter.negate());
     if (values.size() == 0) return values;
     return Lists.newArrayList(values.get(ThreadLocalRandom.current().nextInt(values.size())));
   }
 
+  // Same as vegaSchema.schemas(path), but memoized
+  public static List<LeafSchema> getSchemas(List<String> path) {
+    return schemaIndex.lookup(path);
+  }
+
   public static Set<String> getEnumTypes(String value) {
     if (enumValueToTypes.containsKey(value)) return enumValueToTypes.get(value);
     return null;
@@ -0,0 +1,203 @@
+package edu.stanford.nlp.sempre.interactive;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import fig.basic.LogInfo;
+
+/**
+ * Binary snapshot of the data VegaResources derives from the schema: the
+ * filtered simple paths and the enum value maps.
+ *
+ * Computing these expands the whole schema recursively, which dominates
+ * startup time.  The snapshot is keyed by a hash of the schema file and
+ * excludedPaths, and is only rebuilt when either changes (or the format
+ * version is bumped).
+ *
+ * Format: magic, version, key, a table of all distinct strings, then the
+ * paths and maps as string ids.  Read through a memory-mapped buffer.
+ */
+public class VegaResourcesSnapshot {
+  private static final int MAGIC = 0x56524553;  // "VRES"
+  private static final int VERSION = 1;
+
+  public final List<List<String>> simplePaths;
+  public final Map<String, Set<String>> enumValueToTypes;
+  public final Map<String, Set<List<String>>> enumValueToPaths;
+
+  public VegaResourcesSnapshot(List<List<String>> simplePaths, Map<String, Set<String>> enumValueToTypes,
+      Map<String, Set<List<String>>> enumValueToPaths) {
+    this.simplePaths = simplePaths;
+    this.enumValueToTypes = enumValueToTypes;
+    this.enumValueToPaths = enumValueToPaths;
+  }
+
+  /**
+   * Identifies the inputs the snapshot was derived from.
+   */
+  public static String inputKey(File schemaFile, Set<String> excludedPaths) throws IOException {
+    Hasher hasher = Hashing.murmur3_128().newHasher();
+    hasher.putInt(VERSION);
+    hasher.putBytes(Files.readAllBytes(schemaFile.toPath()));
+    if (excludedPaths != null) {
+      for (String excluded : new TreeSet<>(excludedPaths))
+        hasher.putString(excluded, StandardCharsets.UTF_8).putByte((byte) 0);
+    }
+    return hasher.hash().toString();
+  }
+
+  /**
+   * Returns null if there is no usable snapshot for |key| at |file|.
+   */
+  public static VegaResourcesSnapshot read(Path file, String key) {
+    if (!Files.isRegularFile(file)) return null;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || !key.equals(readString(buffer))) {
+        LogInfo.logs("VegaResourcesSnapshot: %s is out of date", file);
+        return null;
+      }
+
+      String[] strings = new String[buffer.getInt()];
+      for (int i = 0; i < strings.length; i++)
+        strings[i] = readString(buffer);
+
+      List<List<String>> simplePaths = readPaths(buffer, strings);
+
+      int numTypes = buffer.getInt();
+      Map<String, Set<String>> enumValueToTypes = new HashMap<>(numTypes * 2);
+      for (int i = 0; i < numTypes; i++) {
+        String value = strings[buffer.getInt()];
+        int n = buffer.getInt();
+        Set<String> types = new HashSet<>(n * 2);
+        for (int j = 0; j < n; j++)
+          types.add(strings[buffer.getInt()]);
+        enumValueToTypes.put(value, types);
+      }
+
+      int numPaths = buffer.getInt();
+      Map<String, Set<List<String>>> enumValueToPaths = new HashMap<>(numPaths * 2);
+      for (int i = 0; i < numPaths; i++) {
+        String value = strings[buffer.getInt()];
+        enumValueToPaths.put(value, new HashSet<>(readPaths(buffer, strings)));
+      }
+      return new VegaResourcesSnapshot(simplePaths, enumValueToTypes, enumValueToPaths);
+    } catch (IOException | RuntimeException e) {
+      LogInfo.logs("VegaResourcesSnapshot: cannot read %s: %s", file, e);
+      return null;
+    }
+  }
+
+  /**
+   * Write to a temporary file first, so that a concurrent reader never sees a partial snapshot.
+   */
+  public void write(Path file, String key) throws IOException {
+    Map<String, Integer> ids = new LinkedHashMap<>();
+    for (List<String> path : simplePaths)
+      internAll(ids, path);
+    for (Map.Entry<String, Set<String>> entry : enumValueToTypes.entrySet()) {
+      intern(ids, entry.getKey());
+      internAll(ids, entry.getValue());
+    }
+    for (Map.Entry<String, Set<List<String>>> entry : enumValueToPaths.entrySet()) {
+      intern(ids, entry.getKey());
+      for (List<String> path : entry.getValue())
+        internAll(ids, path);
+    }
+
+    Path parent = file.toAbsolutePath().getParent();
+    if (parent != null) Files.createDirectories(parent);
+    Path tmp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      writeString(out, key);
+
+      out.writeInt(ids.size());
+      for (String s : ids.keySet())
+        writeString(out, s);
+
+      writePaths(out, ids, simplePaths);
+
+      out.writeInt(enumValueToTypes.size());
+      for (Map.Entry<String, Set<String>> entry : enumValueToTypes.entrySet()) {
+        out.writeInt(ids.get(entry.getKey()));
+        out.writeInt(entry.getValue().size());
+        for (String type : entry.getValue())
+          out.writeInt(ids.get(type));
+      }
+
+      out.writeInt(enumValueToPaths.size());
+      for (Map.Entry<String, Set<List<String>>> entry : enumValueToPaths.entrySet()) {
+        out.writeInt(ids.get(entry.getKey()));
+        writePaths(out, ids, entry.getValue());
+      }
+    }
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static void intern(Map<String, Integer> ids, String s) {
+    if (!ids.containsKey(s)) ids.put(s, ids.size());
+  }
+
+  private static void internAll(Map<String, Integer> ids, Collection<String> strings) {
+    for (String s : strings)
+      intern(ids, s);
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(MappedByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void writePaths(DataOutputStream out, Map<String, Integer> ids, Collection<List<String>> paths)
+      throws IOException {
+    out.writeInt(paths.size());
+    for (List<String> path : paths) {
+      out.writeInt(path.size());
+      for (String s : path)
+        out.writeInt(ids.get(s));
+    }
+  }
+
+  private static List<List<String>> readPaths(MappedByteBuffer buffer, String[] strings) {
+    int n = buffer.getInt();
+    List<List<String>> paths = new ArrayList<>(n);
+    for (int i = 0; i < n; i++) {
+      int length = buffer.getInt();
+      List<String> path = new ArrayList<>(length);
+      for (int j = 0; j < length; j++)
+        path.add(strings[buffer.getInt()]);
+      paths.add(path);
+    }
+    return paths;
+  }
+}
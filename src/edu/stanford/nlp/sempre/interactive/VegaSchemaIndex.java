@@ -0,0 +1,116 @@
+package edu.stanford.nlp.sempre.interactive;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import fig.basic.LogInfo;
+
+/**
+ * Resolves paths in the Vega-lite spec to their leaf schemas once, so that
+ * JsonFn.JoinStream does not walk the schema from the root (resolving every
+ * $ref and anyOf on the way) for each derivation.
+ *
+ * The simple paths are compiled when VegaResources builds its resources
+ * (but not when it loads them from a snapshot); any other path is compiled
+ * on first use.  A lookup is then a hash of the path.
+ */
+public class VegaSchemaIndex {
+  /**
+   * A resolved schema, with what checkType and getValues need precomputed.
+   */
+  public static class LeafSchema {
+    public final JsonSchema schema;
+    public final List<String> enums;  // null if not an enum
+    public final Set<String> enumSet;  // null if not an enum
+    public final boolean isColor;  // a string that holds a color
+    public final boolean isField;  // a string that holds a field name
+
+    LeafSchema(JsonSchema schema) {
+      this.schema = schema;
+      List<String> enums = schema.enums();
+      this.enums = enums == null ? null : Collections.unmodifiableList(enums);
+      this.enumSet = enums == null ? null : Collections.unmodifiableSet(new HashSet<>(enums));
+      List<String> simplePath = schema.simplePath();
+      String last = simplePath.isEmpty() ? "" : simplePath.get(simplePath.size() - 1);
+      this.isColor = last.endsWith("color") || last.endsWith("Color")
+          || last.equals("fill") || last.equals("stroke") || last.equals("background");
+      this.isField = last.equals("field");
+    }
+
+    // Computed on first use, since schema.types() throws for schemas without a type
+    private volatile List<String> types;
+    private volatile String typesError;
+
+    /**
+     * Same as schema.types() (which throws for schemas without a type), computed once.
+     */
+    public List<String> types() {
+      if (types == null && typesError == null) {
+        try {
+          types = Collections.unmodifiableList(schema.types());
+        } catch (RuntimeException e) {
+          typesError = e.getMessage();
+        }
+      }
+      if (typesError != null)
+        throw new RuntimeException(typesError);
+      return types;
+    }
+  }
+
+  private final JsonSchema root;
+  private final Map<List<String>, List<LeafSchema>> index = new ConcurrentHashMap<>();
+  // Paths that root.schemas() failed on -> error message, so they are not walked again
+  private final Map<List<String>, String> failures = new ConcurrentHashMap<>();
+
+  public VegaSchemaIndex(JsonSchema root, Collection<List<String>> paths) {
+    this.root = root;
+    for (List<String> path : paths) {
+      try {
+        lookup(path);
+      } catch (RuntimeException e) {
+        // Remembered in failures; lookup() throws again when the path is used
+      }
+    }
+    LogInfo.logs("VegaSchemaIndex: compiled %d paths (%d failed)", index.size(), failures.size());
+  }
+
+  /**
+   * Same schemas (in the same order) as root.schemas(path).
+   */
+  public List<LeafSchema> lookup(List<String> path) {
+    List<LeafSchema> leaves = index.get(path);
+    if (leaves == null) {
+      String error = failures.get(path);
+      if (error != null)
+        throw new RuntimeException(error);
+      List<String> key = Collections.unmodifiableList(new ArrayList<>(path));
+      try {
+        leaves = compile(root.schemas(key));
+      } catch (RuntimeException e) {
+        failures.put(key, String.valueOf(e.getMessage()));
+        throw e;
+      }
+      List<LeafSchema> existing = index.putIfAbsent(key, leaves);
+      if (existing != null) leaves = existing;
+    }
+    return leaves;
+  }
+
+  private static List<LeafSchema> compile(List<JsonSchema> schemas) {
+    List<LeafSchema> leaves = new ArrayList<>(schemas.size());
+    for (JsonSchema schema : schemas)
+      leaves.add(new LeafSchema(schema));
+    return Collections.unmodifiableList(leaves);
+  }
+
+  public int size() {
+    return index.size();
+  }
+}
@@ -0,0 +1,239 @@
+package edu.stanford.nlp.sempre.interactive;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import edu.stanford.nlp.sempre.Json;
+import edu.stanford.nlp.sempre.interactive.VegaEngine.VegaImage;
+import edu.stanford.nlp.sempre.interactive.VegaEngine.VegaResponse;
+import fig.basic.LogInfo;
+import fig.basic.Option;
+
+/**
+ * Compiles Vega-lite in a long-lived external process (by default
+ * plot/js-lib/vega-sidecar.js running on node) instead of Nashorn.
+ *
+ * The process reads one JSON batch of requests per line on stdin and answers
+ * with one line on stdout; see vega-sidecar.js for the protocol.
+ * Requests from all threads go through a queue, and a single IO thread sends
+ * whatever has accumulated as one batch, so concurrent candidates share round trips.
+ * Candidates are only compiled concurrently when ExecutionStage is enabled
+ * (ExecutionStage.numThreads > 1, off by default); otherwise each request
+ * is a round trip of its own.
+ * Follows the same compile-then-render logic and cache as VegaEngine; if the
+ * process fails or times out, the candidate gets an error response (as with
+ * a Nashorn exception) and the process is restarted.
+ */
+public class VegaSidecar implements VegaCompiler {
+  public static class Options {
+    @Option(gloss = "Command that starts the compiler process")
+    public String command = "node plot/js-lib/vega-sidecar.js";
+    @Option(gloss = "Maximum number of requests sent in one round trip")
+    public int maxBatchSize = 64;
+    @Option(gloss = "Give up on a request (and restart the process if it has it) after this many milliseconds")
+    public long timeoutMs = 30000;
+    @Option(gloss = "Verbosity")
+    public int verbose = 0;
+  }
+
+  public static Options opts = new Options();
+
+  private static class Pending {
+    final ObjectNode request;
+    final CompletableFuture<JsonNode> result = new CompletableFuture<>();
+    final long deadline = System.currentTimeMillis() + opts.timeoutMs;
+    // The process the request was sent to (set by the IO thread)
+    volatile Process process;
+
+    Pending(ObjectNode request) {
+      this.request = request;
+    }
+  }
+
+  private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+  private final Thread ioThread;
+  // Only touched by ioThread, except for stopProcess() in the shutdown hook
+  private volatile Process process;
+  private BufferedWriter toProcess;
+  private BufferedReader fromProcess;
+
+  public VegaSidecar() {
+    ioThread = new Thread(this::run, "VegaSidecar");
+    ioThread.setDaemon(true);
+    ioThread.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(this::stopProcess));
+  }
+
+  @Override
+  public VegaResponse compileVegaLite(JsonNode vlSpec, VegaResponse contextResponse) {
+    String cacheKey = VegaEngine.cacheKey(vlSpec, contextResponse);
+    VegaResponse cached = VegaEngine.getCached(cacheKey);
+    if (cached != null)
+      return cached;
+
+    JsonNode result = await(submit("compile", vlSpec));
+    if (result == null)
+      return new VegaResponse(null, null, "Error: VegaSidecar failed to compile");
+    if (result.has("error")) {
+      VegaResponse vr = new VegaResponse(null, new VegaImage(null, null), result.get("error").asText());
+      VegaEngine.putCached(cacheKey, vr);
+      return vr;
+    }
+    JsonNode vegaSpec = result.get("spec");
+    String message = result.path("message").asText();
+    VegaResponse vr = new VegaResponse(vegaSpec, null, message);
+
+    if (vr.isGoodChange(contextResponse) && VegaEngine.opts.compileToSVG) {
+      result = await(submit("render", vegaSpec));
+      if (result == null)
+        return new VegaResponse(vegaSpec, null, "Error: VegaSidecar failed to render");
+      if (VegaEngine.opts.verbose >= 2)
+        LogInfo.logs("SVG Rendering Logs: " + result.path("message").asText());
+      if (result.has("error")) {
+        vr = new VegaResponse(vegaSpec, new VegaImage(null, null), result.get("error").asText());
+      } else {
+        VegaImage image = new VegaImage(textOrNull(result.get("svg")), textOrNull(result.get("background")));
+        vr = new VegaResponse(vegaSpec, image, message);
+      }
+    }
+    // Failures of the process itself (above) are not cached: they say nothing about the spec
+    VegaEngine.putCached(cacheKey, vr);
+    return vr;
+  }
+
+  private static String textOrNull(JsonNode node) {
+    return node == null || node.isNull() ? null : node.asText();
+  }
+
+  private Pending submit(String op, JsonNode spec) {
+    ObjectNode request = Json.getMapper().createObjectNode();
+    request.put("op", op);
+    request.set("spec", spec);
+    Pending pending = new Pending(request);
+    queue.add(pending);
+    return pending;
+  }
+
+  // Return the result of |pending|, or null if it failed or timed out.
+  // A request that is given up on is cancelled, so the IO thread does not send it.
+  private JsonNode await(Pending pending) {
+    try {
+      return pending.result.get(Math.max(0, pending.deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      pending.result.cancel(false);
+      LogInfo.logs("VegaSidecar: interrupted while waiting");
+    } catch (ExecutionException e) {
+      LogInfo.logs("VegaSidecar: request failed: %s", e.getCause());
+    } catch (TimeoutException e) {
+      pending.result.cancel(false);
+      if (pending.process != null) {
+        LogInfo.logs("VegaSidecar: no answer after %d ms, restarting the process", opts.timeoutMs);
+        // Killing the process makes the IO thread fail the batch and start a new process
+        stopProcess(pending.process);
+      } else {
+        LogInfo.logs("VegaSidecar: request not sent within %d ms", opts.timeoutMs);
+      }
+    }
+    return null;
+  }
+
+  // Whether nobody is waiting for |pending| anymore.
+  private static boolean isAbandoned(Pending pending) {
+    return pending.result.isDone() || System.currentTimeMillis() >= pending.deadline;
+  }
+
+  private void run() {
+    List<Pending> batch = new ArrayList<>();
+    while (true) {
+      try {
+        batch.add(queue.take());
+      } catch (InterruptedException e) {
+        break;
+      }
+      queue.drainTo(batch, opts.maxBatchSize - 1);
+      // Callers that timed out or were interrupted while their request was queued
+      batch.removeIf(VegaSidecar::isAbandoned);
+      if (batch.isEmpty())
+        continue;
+      try {
+        if (process == null || !process.isAlive())
+          startProcess();
+        for (Pending pending : batch)
+          pending.process = process;
+        JsonNode results = roundTrip(batch);
+        for (int i = 0; i < batch.size(); i++)
+          batch.get(i).result.complete(results.get(i));
+      } catch (IOException | RuntimeException e) {
+        LogInfo.logs("VegaSidecar: batch of %d failed: %s", batch.size(), e);
+        for (Pending pending : batch)
+          pending.result.completeExceptionally(e);
+        // Start a fresh process for the next batch
+        stopProcess();
+      }
+      batch.clear();
+    }
+    stopProcess();
+  }
+
+  private JsonNode roundTrip(List<Pending> batch) throws IOException {
+    ObjectNode message = Json.getMapper().createObjectNode();
+    ArrayNode requests = message.putArray("requests");
+    for (Pending pending : batch)
+      requests.add(pending.request);
+    toProcess.write(Json.writeValueAsStringHard(message));
+    toProcess.newLine();
+    toProcess.flush();
+
+    String line = fromProcess.readLine();
+    if (line == null)
+      throw new IOException("VegaSidecar: process exited");
+    JsonNode response = Json.readValueHard(line, JsonNode.class);
+    if (response.has("error"))
+      throw new RuntimeException("VegaSidecar: " + response.get("error").asText());
+    JsonNode results = response.get("results");
+    if (results == null || results.size() != batch.size())
+      throw new IOException("VegaSidecar: expected " + batch.size() + " results, got " + response);
+    if (opts.verbose >= 1)
+      LogInfo.logs("VegaSidecar: round trip with %d requests", batch.size());
+    return results;
+  }
+
+  private void startProcess() throws IOException {
+    LogInfo.logs("VegaSidecar: starting %s", opts.command);
+    ProcessBuilder builder = new ProcessBuilder(opts.command.trim().split("\\s+"));
+    builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+    process = builder.start();
+    toProcess = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+    fromProcess = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+  }
+
+  private synchronized void stopProcess() {
+    if (process != null) {
+      process.destroy();
+      process = null;
+    }
+  }
+
+  // Stop |stuck| unless it has already been replaced.
+  private synchronized void stopProcess(Process stuck) {
+    if (stuck != null && stuck == process)
+      stopProcess();
+  }
+}
@@ -1,37 +1,66 @@
 package edu.stanford.nlp.sempre.interactive;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import edu.stanford.nlp.sempre.ContextValue;
 import edu.stanford.nlp.sempre.JsonValue;
 import edu.stanford.nlp.sempre.Value;
 import edu.stanford.nlp.sempre.ValueEvaluator;
 import fig.basic.LogInfo;
-import fig.basic.Pair;
+import fig.basic.Option;
 import java.util.*;
 
 // Give partial credit if matching key but not value
 public class VegaValueEvaluator implements ValueEvaluator {
-  private List<List<String>> getDiffPaths(JsonNode oldNode, JsonNode newNode) {
-    List<Pair<List<String>, JsonNode>> oldLeaves = JsonUtils.allPathValues(oldNode, true);
-    List<Pair<List<String>, JsonNode>> newLeaves = JsonUtils.allPathValues(newNode, true);
-    List<List<String>> diff = new ArrayList<List<String>>();
-    // Check all keys that were in oldLeaves
-    for (Pair<List<String>, JsonNode> pair: oldLeaves) {
-      JsonNode oldValue = pair.getSecond();
-      JsonNode newValue = JsonUtils.getPathValue(newNode, pair.getFirst());
-      if (!oldValue.equals(newValue)) {
-        diff.add(pair.getFirst());
-      }
+  public static class Options {
+    @Option(gloss = "Start a fresh path index once this many paths have been interned")
+    public int maxInternedPaths = 1000000;
+    @Option(gloss = "Number of target diffs to cache")
+    public int targetCacheSize = 1000;
+  }
+  public static Options opts = new Options();
+
+  // Paths where a target differs from its context
+  private static class TargetDiff {
+    final JsonNode context;
+    final JsonDiff pathIndex;
+    final int[] paths;
+
+    TargetDiff(JsonNode context, JsonDiff pathIndex, int[] paths) {
+      this.context = context;
+      this.pathIndex = pathIndex;
+      this.paths = paths;
     }
-    // Also look for added keys in newLeaves
-    for (Pair<List<String>, JsonNode> pair: newLeaves) {
-      JsonNode newValue = pair.getSecond();
-      JsonNode oldValue = JsonUtils.getPathValue(oldNode, pair.getFirst());
-      if (oldValue == null) {
-        diff.add(pair.getFirst());
+  }
+
+  private volatile JsonDiff pathIndex = new JsonDiff();
+  // All derivations of an Example share its targetValue, so the target diff
+  // is computed once per Example (weak keys compare by identity)
+  private final Cache<Value, TargetDiff> targetDiffs = CacheBuilder.newBuilder()
+      .weakKeys().maximumSize(opts.targetCacheSize).build();
+
+  private JsonDiff getPathIndex() {
+    JsonDiff index = pathIndex;
+    if (index.size() > opts.maxInternedPaths) {
+      synchronized (this) {
+        if (pathIndex == index) {
+          LogInfo.logs("VegaValueEvaluator: starting a fresh path index after %d paths", index.size());
+          pathIndex = new JsonDiff();
+        }
+        index = pathIndex;
       }
     }
-    return diff;
+    return index;
+  }
+
+  private int[] getTargetDiff(Value target, JsonNode jsonTarget, JsonNode jsonContext, JsonDiff index) {
+    TargetDiff cached = targetDiffs.getIfPresent(target);
+    if (cached != null && cached.context == jsonContext && cached.pathIndex == index)
+      return cached.paths;
+    int[] paths = index.diffIds(jsonContext, jsonTarget);
+    targetDiffs.put(target, new TargetDiff(jsonContext, index, paths));
+    return paths;
   }
 
   public double getCompatibility(Value target, Value pred, ContextValue context) {
@@ -42,13 +71,11 @@ public class VegaValueEvaluator implements ValueEvaluator {
     JsonNode jsonContext = ((VegaJsonContextValue) context).getJsonNode();
     JsonNode jsonTarget = ((JsonValue) target).getJsonNode();
     JsonNode jsonPred = ((JsonValue) pred).getJsonNode();
-    List<List<String>> targetDiff = getDiffPaths(jsonContext, jsonTarget);
-    List<List<String>> predDiff = getDiffPaths(jsonContext, jsonPred);
-    //LogInfo.logs("targetDiff: %s", targetDiff);
-    //LogInfo.logs("predDiff: %s", predDiff);
-    for (List<String> path: targetDiff) {
-      if (predDiff.contains(path)) return 0.5;
-    }
-    return 0;
+    JsonDiff index = getPathIndex();
+    int[] targetDiff = getTargetDiff(target, jsonTarget, jsonContext, index);
+    if (targetDiff.length == 0) return 0;
+    // Partial credit if the prediction changed any path the target changed
+    boolean overlaps = index.diff(jsonContext, jsonPred, id -> Arrays.binarySearch(targetDiff, id) >= 0);
+    return overlaps ? 0.5 : 0;
   }
 }
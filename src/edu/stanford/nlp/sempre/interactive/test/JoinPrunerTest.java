@@ -0,0 +1,80 @@
+package edu.stanford.nlp.sempre.interactive.test;
+
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+import edu.stanford.nlp.sempre.JsonValue;
+import edu.stanford.nlp.sempre.interactive.JsonFn.JoinPruner;
+import edu.stanford.nlp.sempre.interactive.VegaJsonContextValue;
+
+/**
+ * Test which joined values JsonFn.JoinPruner drops.
+ */
+public class JoinPrunerTest {
+  private static VegaJsonContextValue context(String json, String... fieldNames) {
+    VegaJsonContextValue context = new VegaJsonContextValue(json.replace('\'', '"'));
+    if (fieldNames.length > 0) {
+      Map<String, Map<String, Object>> schema = new HashMap<>();
+      for (String name : fieldNames) {
+        Map<String, Object> item = new HashMap<>();
+        item.put("name", name);
+        item.put("type", "string");
+        schema.put(name, item);
+      }
+      context.setFields(schema);
+    }
+    return context;
+  }
+
+  private static boolean keeps(VegaJsonContextValue context, List<String> path, Object value) {
+    return new JoinPruner(context, "$." + String.join(".", path), path).test(new JsonValue(value));
+  }
+
+  @Test
+  public void noOpTest() {
+    VegaJsonContextValue context = context("{'mark': 'bar', 'encoding': {'x': {'field': 'a', 'bin': true}}}", "a", "b");
+    assertFalse(keeps(context, Arrays.asList("mark"), "bar"));
+    assertTrue(keeps(context, Arrays.asList("mark"), "point"));
+    assertFalse(keeps(context, Arrays.asList("encoding", "x", "field"), "a"));
+    assertTrue(keeps(context, Arrays.asList("encoding", "x", "field"), "b"));
+    assertFalse(keeps(context, Arrays.asList("encoding", "x", "bin"), true));
+    assertTrue(keeps(context, Arrays.asList("encoding", "x", "bin"), false));
+    // Unset paths, including missing parents, are set by JsonUtils.setPathValue
+    assertTrue(keeps(context, Arrays.asList("encoding", "x", "type"), "nominal"));
+    assertTrue(keeps(context, Arrays.asList("encoding", "y", "field"), "a"));
+  }
+
+  @Test
+  public void invalidPathTest() {
+    VegaJsonContextValue context = context("{'mark': 'bar', 'layer': [{'mark': 'bar'}], 'encoding': {'x': {'field': 'a'}}}");
+    // Through an array
+    assertFalse(keeps(context, Arrays.asList("layer", "[0]", "mark"), "point"));
+    assertFalse(keeps(context, Arrays.asList("layer", "mark"), "point"));
+    // Through a value
+    assertFalse(keeps(context, Arrays.asList("mark", "type"), "point"));
+    assertFalse(keeps(context, Arrays.asList("encoding", "x", "field", "repeat"), "row"));
+    // Replacing the array itself is fine
+    assertTrue(keeps(context, Arrays.asList("layer"), "point"));
+  }
+
+  @Test
+  public void fieldTest() {
+    VegaJsonContextValue context = context("{'mark': 'bar', 'encoding': {'x': {'field': 'a'}}}", "a", "b");
+    // Unknown fields (including the placeholder) would not render
+    assertFalse(keeps(context, Arrays.asList("encoding", "y", "field"), "c"));
+    assertFalse(keeps(context, Arrays.asList("encoding", "y", "field"), "fieldName"));
+    assertTrue(keeps(context, Arrays.asList("encoding", "y", "field"), "b"));
+    // Field names are only checked on field paths
+    assertTrue(keeps(context, Arrays.asList("encoding", "y", "title"), "c"));
+    // Without table fields, any field is allowed
+    VegaJsonContextValue noFields = context("{'mark': 'bar'}");
+    assertTrue(keeps(noFields, Arrays.asList("encoding", "y", "field"), "fieldName"));
+  }
+}
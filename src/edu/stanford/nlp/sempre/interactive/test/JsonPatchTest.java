@@ -0,0 +1,126 @@
+package edu.stanford.nlp.sempre.interactive.test;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.fail;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import edu.stanford.nlp.sempre.Json;
+import edu.stanford.nlp.sempre.interactive.JsonUtils;
+
+/**
+ * Test JsonUtils.jsonPatch and JsonUtils.applyJsonPatch.
+ */
+public class JsonPatchTest {
+  private static JsonNode parse(String json) {
+    return Json.readValueHard(json.replace('\'', '"'), JsonNode.class);
+  }
+
+  private static void checkRoundTrip(JsonNode source, JsonNode target) {
+    String before = source.toString();
+    JsonNode patch = JsonUtils.jsonPatch(source, target);
+    assertEquals(patch.toString(), target, JsonUtils.applyJsonPatch(source, patch));
+    // The source is copied, not changed
+    assertEquals(before, source.toString());
+  }
+
+  @Test
+  public void roundTripTest() {
+    List<JsonNode> specs = Arrays.asList(
+        parse("{}"),
+        parse("{'mark': 'bar', 'encoding': {'x': {'field': 'a', 'type': 'nominal'}, 'y': {'field': 'b'}}}"),
+        parse("{'mark': 'point', 'encoding': {'x': {'field': 'a', 'bin': true}, 'color': {'value': 'red'}}}"),
+        parse("{'mark': 'bar', 'data': {'values': [{'a': 1}, {'a': 2}]}, 'encoding': []}"),
+        parse("{'mark': {'type': 'bar'}, 'data': {'values': [{'a': 1}]}, 'encoding': null}"),
+        // Keys that have to be escaped in pointers
+        parse("{'a/b': 1, 'c~d': {'~1': 2, '/': 3}, '': 4}"),
+        parse("{'a/b': 2, 'c~d': {'~1': 2, '~0': 3}}"),
+        parse("[1, 2]"),
+        parse("3"));
+    for (JsonNode source : specs)
+      for (JsonNode target : specs)
+        checkRoundTrip(source, target);
+    assertEquals(0, JsonUtils.jsonPatch(specs.get(1), specs.get(1).deepCopy()).size());
+  }
+
+  @Test
+  public void pointerEscapingTest() {
+    JsonNode source = parse("{'a/b': 1, 'c~d': {'~1': 2}}");
+    assertEquals(parse("[{'op': 'replace', 'path': '/a~1b', 'value': 5}]"),
+        JsonUtils.jsonPatch(source, parse("{'a/b': 5, 'c~d': {'~1': 2}}")));
+    assertEquals(parse("[{'op': 'remove', 'path': '/c~0d/~01'}]"),
+        JsonUtils.jsonPatch(source, parse("{'a/b': 1, 'c~d': {}}")));
+    // ~01 is ~1, not /
+    assertEquals(parse("{'a/b': 1, 'c~d': {'~1': 3}}"),
+        JsonUtils.applyJsonPatch(source, parse("[{'op': 'replace', 'path': '/c~0d/~01', 'value': 3}]")));
+  }
+
+  @Test
+  public void arrayTest() {
+    JsonNode source = parse("{'values': [1, 2, 3]}");
+    assertEquals(parse("{'values': [1, 5, 2, 3]}"),
+        JsonUtils.applyJsonPatch(source, parse("[{'op': 'add', 'path': '/values/1', 'value': 5}]")));
+    assertEquals(parse("{'values': [1, 2, 3, 5]}"),
+        JsonUtils.applyJsonPatch(source, parse("[{'op': 'add', 'path': '/values/3', 'value': 5}]")));
+    assertEquals(parse("{'values': [1, 2, 3, 5]}"),
+        JsonUtils.applyJsonPatch(source, parse("[{'op': 'add', 'path': '/values/-', 'value': 5}]")));
+    assertEquals(parse("{'values': [1, 3]}"),
+        JsonUtils.applyJsonPatch(source, parse("[{'op': 'remove', 'path': '/values/1'}]")));
+    assertEquals(parse("{'values': [1, 2, 5]}"),
+        JsonUtils.applyJsonPatch(source, parse("[{'op': 'replace', 'path': '/values/2', 'value': 5}]")));
+    // Ops apply in order
+    assertEquals(parse("{'values': [0, 1, 3, 4]}"),
+        JsonUtils.applyJsonPatch(source, parse("[{'op': 'add', 'path': '/values/0', 'value': 0}," +
+            " {'op': 'remove', 'path': '/values/2'}, {'op': 'add', 'path': '/values/-', 'value': 4}]")));
+    // Changed arrays are replaced whole
+    assertEquals(parse("[{'op': 'replace', 'path': '/values', 'value': [1, 2]}]"),
+        JsonUtils.jsonPatch(source, parse("{'values': [1, 2]}")));
+  }
+
+  @Test
+  public void rootTest() {
+    JsonNode source = parse("{'mark': 'bar'}");
+    assertEquals(parse("[1]"), JsonUtils.applyJsonPatch(source, parse("[{'op': 'replace', 'path': '', 'value': [1]}]")));
+    assertEquals(parse("[{'op': 'replace', 'path': '', 'value': 'bar'}]"),
+        JsonUtils.jsonPatch(source, parse("'bar'")));
+    assertEquals(source, JsonUtils.applyJsonPatch(source, parse("[]")));
+  }
+
+  private static void checkError(JsonNode source, String patch) {
+    try {
+      JsonUtils.applyJsonPatch(source, parse(patch));
+      fail("applied " + patch);
+    } catch (RuntimeException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void errorTest() {
+    JsonNode source = parse("{'mark': 'bar', 'values': [1, 2]}");
+    checkError(source, "[{'op': 'move', 'from': '/mark', 'path': '/type'}]");
+    checkError(source, "[{'op': 'test', 'path': '/mark', 'value': 'bar'}]");
+    checkError(source, "[{'op': 'add', 'path': 'mark', 'value': 1}]");
+    checkError(source, "[{'op': 'add', 'path': '/mark'}]");
+    // Missing fields
+    checkError(source, "[{'op': 'remove', 'path': '/type'}]");
+    checkError(source, "[{'op': 'replace', 'path': '/type', 'value': 1}]");
+    checkError(source, "[{'op': 'add', 'path': '/type/name', 'value': 1}]");
+    // Bad indices
+    checkError(source, "[{'op': 'add', 'path': '/values/3', 'value': 1}]");
+    checkError(source, "[{'op': 'replace', 'path': '/values/2', 'value': 1}]");
+    checkError(source, "[{'op': 'replace', 'path': '/values/-', 'value': 1}]");
+    checkError(source, "[{'op': 'remove', 'path': '/values/2'}]");
+    checkError(source, "[{'op': 'remove', 'path': '/values/-'}]");
+    checkError(source, "[{'op': 'remove', 'path': '/values/-1'}]");
+    checkError(source, "[{'op': 'remove', 'path': '/values/01'}]");
+    checkError(source, "[{'op': 'remove', 'path': '/values/x'}]");
+    // Through a value
+    checkError(source, "[{'op': 'add', 'path': '/mark/type', 'value': 1}]");
+  }
+}
@@ -0,0 +1,98 @@
+package edu.stanford.nlp.sempre.interactive.test;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+import static org.testng.AssertJUnit.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+import edu.stanford.nlp.sempre.interactive.QueryScheduler;
+import edu.stanford.nlp.sempre.interactive.QueryScheduler.RejectedQueryException;
+
+/**
+ * Test the admission control of QueryScheduler under saturation.
+ */
+public class QuerySchedulerTest {
+
+  private static void assertRejected(QueryScheduler scheduler, long arrivalNanos, double timeoutSeconds, String reason) throws Exception {
+    try {
+      scheduler.call(() -> "ran", arrivalNanos, timeoutSeconds);
+      fail("expected a rejection: " + reason);
+    } catch (RejectedQueryException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains(reason));
+    }
+  }
+
+  // Occupy the single worker of |scheduler| and fill its queue; returns the latch that releases them.
+  private static CountDownLatch saturate(QueryScheduler scheduler, ExecutorService callers, int numQueued) throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    for (int i = 0; i <= numQueued; i++)
+      callers.submit(() -> scheduler.call(() -> release.await(10, TimeUnit.SECONDS), 10));
+    while (!scheduler.metrics().get("running").equals(1) || scheduler.queueDepth() < numQueued)
+      Thread.sleep(1);
+    return release;
+  }
+
+  @Test
+  public void queueFullTest() throws Exception {
+    int origMaxQueueSize = QueryScheduler.opts.maxQueueSize;
+    boolean origAdmissionControl = QueryScheduler.opts.admissionControl;
+    QueryScheduler.opts.maxQueueSize = 2;
+    QueryScheduler.opts.admissionControl = false;
+    QueryScheduler scheduler = new QueryScheduler(1);
+    ExecutorService callers = Executors.newCachedThreadPool();
+    try {
+      assertEquals(3, scheduler.capacity());
+      CountDownLatch release = saturate(scheduler, callers, 2);
+      assertRejected(scheduler, System.nanoTime(), 10, "queue is full");
+      release.countDown();
+      // Once the backlog drains, queries are admitted again
+      while (scheduler.queueDepth() > 0)
+        Thread.sleep(1);
+      assertEquals("ran", scheduler.call(() -> "ran", 10));
+    } finally {
+      QueryScheduler.opts.maxQueueSize = origMaxQueueSize;
+      QueryScheduler.opts.admissionControl = origAdmissionControl;
+      callers.shutdownNow();
+      scheduler.shutdown();
+    }
+  }
+
+  @Test
+  public void expectedWaitTest() throws Exception {
+    int origMaxQueueSize = QueryScheduler.opts.maxQueueSize;
+    boolean origAdmissionControl = QueryScheduler.opts.admissionControl;
+    QueryScheduler.opts.maxQueueSize = 10;
+    QueryScheduler.opts.admissionControl = true;
+    QueryScheduler scheduler = new QueryScheduler(1);
+    ExecutorService callers = Executors.newCachedThreadPool();
+    try {
+      // Queries take about 0.2s
+      scheduler.call(() -> { Thread.sleep(200); return null; }, 10);
+
+      CountDownLatch release = saturate(scheduler, callers, 2);
+      // Three queries ahead of it on one worker: expected wait is about 0.6s
+      assertTrue(scheduler.expectedWaitSeconds() >= 0.5);
+      assertRejected(scheduler, System.nanoTime(), 0.3, "expected wait");
+      // The time spent before reaching the scheduler counts against the deadline
+      assertRejected(scheduler, System.nanoTime() - TimeUnit.SECONDS.toNanos(2), 2.5, "expected wait");
+      assertRejected(scheduler, System.nanoTime() - TimeUnit.SECONDS.toNanos(3), 2.5, "before reaching the scheduler");
+      // A query with enough time left is queued
+      Future<Object> admitted = callers.submit(() -> scheduler.call(() -> "ran", 10));
+      release.countDown();
+      assertEquals("ran", admitted.get());
+      assertEquals(3L, scheduler.metrics().get("rejected"));
+    } finally {
+      QueryScheduler.opts.maxQueueSize = origMaxQueueSize;
+      QueryScheduler.opts.admissionControl = origAdmissionControl;
+      callers.shutdownNow();
+      scheduler.shutdown();
+    }
+  }
+}
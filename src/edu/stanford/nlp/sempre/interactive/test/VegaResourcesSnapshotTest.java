@@ -0,0 +1,110 @@
+package edu.stanford.nlp.sempre.interactive.test;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNotNull;
+import static org.testng.AssertJUnit.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.testng.annotations.Test;
+
+import com.google.common.collect.Sets;
+
+import edu.stanford.nlp.sempre.interactive.VegaResourcesSnapshot;
+
+/**
+ * Test the binary snapshot of VegaResources: round trip and input key.
+ */
+public class VegaResourcesSnapshotTest {
+
+  private static VegaResourcesSnapshot makeSnapshot() {
+    List<List<String>> simplePaths = Arrays.asList(
+        Arrays.asList("mark"),
+        Arrays.asList("encoding", "x", "field"),
+        Arrays.asList("encoding", "x", "type"),
+        Arrays.asList("encoding", "color", "scale", "type"),
+        Arrays.asList("\u00e9", "\u00fc\u00f1\u00ed", ""));
+    Map<String, Set<String>> enumValueToTypes = new HashMap<>();
+    enumValueToTypes.put("quantitative", Sets.newHashSet("string"));
+    enumValueToTypes.put("linear", Sets.newHashSet("string", "null"));
+    enumValueToTypes.put("bar", Sets.newHashSet("string"));
+    Map<String, Set<List<String>>> enumValueToPaths = new HashMap<>();
+    enumValueToPaths.put("quantitative", Sets.<List<String>>newHashSet(Arrays.asList("encoding", "x", "type")));
+    enumValueToPaths.put("linear", Sets.newHashSet(Arrays.asList("encoding", "color", "scale", "type"),
+        Arrays.asList("encoding", "x", "scale", "type")));
+    enumValueToPaths.put("bar", Sets.<List<String>>newHashSet(Arrays.asList("mark")));
+    return new VegaResourcesSnapshot(simplePaths, enumValueToTypes, enumValueToPaths);
+  }
+
+  private static Path tempFile(String suffix) throws IOException {
+    File file = File.createTempFile("vega-resources-test", suffix);
+    file.deleteOnExit();
+    return file.toPath();
+  }
+
+  @Test
+  public void roundTripTest() throws IOException {
+    VegaResourcesSnapshot snapshot = makeSnapshot();
+    Path file = tempFile(".snapshot");
+    snapshot.write(file, "key1");
+
+    VegaResourcesSnapshot read = VegaResourcesSnapshot.read(file, "key1");
+    assertNotNull(read);
+    assertEquals(snapshot.simplePaths, read.simplePaths);
+    assertEquals(snapshot.enumValueToTypes, read.enumValueToTypes);
+    assertEquals(snapshot.enumValueToPaths, read.enumValueToPaths);
+
+    // Another key, a missing file or a truncated file are misses
+    assertNull(VegaResourcesSnapshot.read(file, "key2"));
+    assertNull(VegaResourcesSnapshot.read(file.resolveSibling(file.getFileName() + ".missing"), "key1"));
+    byte[] bytes = Files.readAllBytes(file);
+    Files.write(file, Arrays.copyOf(bytes, bytes.length - 3));
+    assertNull(VegaResourcesSnapshot.read(file, "key1"));
+    Files.write(file, new byte[0]);
+    assertNull(VegaResourcesSnapshot.read(file, "key1"));
+
+    // Empty snapshot
+    VegaResourcesSnapshot empty = new VegaResourcesSnapshot(Arrays.asList(), new HashMap<>(), new HashMap<>());
+    empty.write(file, "key1");
+    read = VegaResourcesSnapshot.read(file, "key1");
+    assertEquals(0, read.simplePaths.size());
+    assertEquals(0, read.enumValueToTypes.size());
+    assertEquals(0, read.enumValueToPaths.size());
+  }
+
+  @Test
+  public void inputKeyTest() throws IOException {
+    Path schema = tempFile(".json");
+    Files.write(schema, "{\"type\": \"object\"}".getBytes(StandardCharsets.UTF_8));
+    Set<String> excluded = Sets.newHashSet("config", "$schema");
+    String key = VegaResourcesSnapshot.inputKey(schema.toFile(), excluded);
+
+    assertEquals(key, VegaResourcesSnapshot.inputKey(schema.toFile(), Sets.newHashSet("$schema", "config")));
+    assertFalse(key.equals(VegaResourcesSnapshot.inputKey(schema.toFile(), Sets.newHashSet("config"))));
+    assertFalse(key.equals(VegaResourcesSnapshot.inputKey(schema.toFile(), Sets.newHashSet("config", "$schema", "data"))));
+    // Element boundaries count: {"ab"} is not {"a", "b"}
+    assertFalse(VegaResourcesSnapshot.inputKey(schema.toFile(), Sets.newHashSet("ab"))
+        .equals(VegaResourcesSnapshot.inputKey(schema.toFile(), Sets.newHashSet("a", "b"))));
+    assertFalse(key.equals(VegaResourcesSnapshot.inputKey(schema.toFile(), null)));
+
+    // A snapshot written for the old schema is a miss after the schema changes
+    Path file = tempFile(".snapshot");
+    makeSnapshot().write(file, key);
+    assertNotNull(VegaResourcesSnapshot.read(file, VegaResourcesSnapshot.inputKey(schema.toFile(), excluded)));
+    Files.write(schema, "{\"type\": \"array\"}".getBytes(StandardCharsets.UTF_8));
+    String newKey = VegaResourcesSnapshot.inputKey(schema.toFile(), excluded);
+    assertFalse(key.equals(newKey));
+    assertNull(VegaResourcesSnapshot.read(file, newKey));
+    assertNull(VegaResourcesSnapshot.read(file, VegaResourcesSnapshot.inputKey(schema.toFile(), Sets.newHashSet("config"))));
+  }
+}
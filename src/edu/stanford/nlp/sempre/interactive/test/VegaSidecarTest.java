@@ -0,0 +1,183 @@
+package edu.stanford.nlp.sempre.interactive.test;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import edu.stanford.nlp.sempre.Json;
+import edu.stanford.nlp.sempre.interactive.VegaEngine;
+import edu.stanford.nlp.sempre.interactive.VegaEngine.VegaResponse;
+import edu.stanford.nlp.sempre.interactive.VegaSidecar;
+
+/**
+ * Test VegaSidecar against a stand-in process (main below) instead of node.
+ */
+public class VegaSidecarTest {
+  /**
+   * Stand-in for vega-sidecar.js: answers each compile request with
+   * {"name": ..., "batchSize": ..., "process": ...}, after sleeping for the
+   * request's sleepMs, and appends the name of each request it gets to the
+   * file args[0].
+   */
+  public static void main(String[] args) throws Exception {
+    String process = Long.toString(System.nanoTime());
+    BufferedReader in = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+    String line;
+    while ((line = in.readLine()) != null) {
+      JsonNode requests = Json.readValueHard(line, JsonNode.class).get("requests");
+      ObjectNode response = Json.getMapper().createObjectNode();
+      ArrayNode results = response.putArray("results");
+      for (JsonNode request : requests) {
+        JsonNode spec = request.get("spec");
+        try (PrintWriter log = new PrintWriter(new FileWriter(args[0], true))) {
+          log.println(spec.path("name").asText());
+        }
+        Thread.sleep(spec.path("sleepMs").asLong());
+        ObjectNode result = results.addObject();
+        result.putObject("spec")
+            .put("name", spec.path("name").asText())
+            .put("batchSize", requests.size())
+            .put("process", process);
+        result.put("message", "");
+      }
+      System.out.println(Json.writeValueAsStringHard(response));
+      System.out.flush();
+    }
+  }
+
+  private File log;
+  private VegaSidecar.Options origOpts;
+  private boolean origUseCache, origCompileToSVG;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    log = File.createTempFile("vega-sidecar-test", ".log");
+    log.deleteOnExit();
+    origOpts = VegaSidecar.opts;
+    origUseCache = VegaEngine.opts.useCache;
+    origCompileToSVG = VegaEngine.opts.compileToSVG;
+    VegaSidecar.opts = new VegaSidecar.Options();
+    VegaSidecar.opts.command = new File(System.getProperty("java.home"), "bin/java").getPath()
+        + " -cp " + System.getProperty("java.class.path") + " " + VegaSidecarTest.class.getName() + " " + log.getPath();
+    VegaEngine.opts.useCache = false;
+    VegaEngine.opts.compileToSVG = false;
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    VegaSidecar.opts = origOpts;
+    VegaEngine.opts.useCache = origUseCache;
+    VegaEngine.opts.compileToSVG = origCompileToSVG;
+  }
+
+  private static JsonNode spec(String name, long sleepMs) {
+    ObjectNode spec = Json.getMapper().createObjectNode();
+    spec.put("name", name);
+    spec.put("sleepMs", sleepMs);
+    return spec;
+  }
+
+  private List<String> requestsReceived() throws IOException {
+    return Files.readAllLines(log.toPath());
+  }
+
+  @Test
+  public void batchTest() throws Exception {
+    VegaSidecar.opts.timeoutMs = 20000;
+    VegaSidecar sidecar = new VegaSidecar();
+    ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      // Start the process
+      assertEquals(1, sidecar.compileVegaLite(spec("first", 0), null).vegaSpec.get("batchSize").asInt());
+
+      // Requests that arrive while the process is busy are sent together
+      Future<VegaResponse> slow = executor.submit(() -> sidecar.compileVegaLite(spec("slow", 1000), null));
+      Thread.sleep(200);
+      List<Future<VegaResponse>> queued = new ArrayList<>();
+      for (int i = 0; i < 5; i++) {
+        String name = "queued" + i;
+        queued.add(executor.submit(() -> sidecar.compileVegaLite(spec(name, 0), null)));
+      }
+      JsonNode slowSpec = slow.get().vegaSpec;
+      assertEquals("slow", slowSpec.get("name").asText());
+      assertEquals(1, slowSpec.get("batchSize").asInt());
+      for (int i = 0; i < 5; i++) {
+        JsonNode queuedSpec = queued.get(i).get().vegaSpec;
+        assertEquals("queued" + i, queuedSpec.get("name").asText());
+        assertEquals(5, queuedSpec.get("batchSize").asInt());
+        assertEquals(slowSpec.get("process"), queuedSpec.get("process"));
+      }
+
+      // At most maxBatchSize requests per round trip
+      VegaSidecar.opts.maxBatchSize = 2;
+      slow = executor.submit(() -> sidecar.compileVegaLite(spec("slow", 1000), null));
+      Thread.sleep(200);
+      queued.clear();
+      for (int i = 0; i < 3; i++) {
+        String name = "queued" + i;
+        queued.add(executor.submit(() -> sidecar.compileVegaLite(spec(name, 0), null)));
+      }
+      slow.get();
+      List<Integer> batchSizes = new ArrayList<>();
+      for (Future<VegaResponse> future : queued)
+        batchSizes.add(future.get().vegaSpec.get("batchSize").asInt());
+      Collections.sort(batchSizes);
+      assertEquals("[1, 2, 2]", batchSizes.toString());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void timeoutTest() throws Exception {
+    VegaSidecar.opts.timeoutMs = 20000;
+    VegaSidecar sidecar = new VegaSidecar();
+    ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      String firstProcess = sidecar.compileVegaLite(spec("first", 0), null).vegaSpec.get("process").asText();
+
+      // A request that is not answered in time gets an error response and kills the process
+      VegaSidecar.opts.timeoutMs = 1000;
+      Future<VegaResponse> stuck = executor.submit(() -> sidecar.compileVegaLite(spec("stuck", 60000), null));
+      Thread.sleep(200);
+      // A request that times out while it is still queued is never sent
+      VegaSidecar.opts.timeoutMs = 100;
+      VegaResponse expired = sidecar.compileVegaLite(spec("expired", 0), null);
+      assertTrue(expired.message, expired.message.startsWith("Error"));
+      assertTrue(stuck.get().message, stuck.get().message.startsWith("Error"));
+
+      // The next request goes to a new process
+      VegaSidecar.opts.timeoutMs = 20000;
+      VegaResponse after = sidecar.compileVegaLite(spec("after", 0), null);
+      assertEquals("after", after.vegaSpec.get("name").asText());
+      assertFalse(firstProcess.equals(after.vegaSpec.get("process").asText()));
+
+      List<String> received = requestsReceived();
+      assertEquals("[first, stuck, after]", received.toString());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
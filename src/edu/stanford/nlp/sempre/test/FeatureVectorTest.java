@@ -0,0 +1,150 @@
+package edu.stanford.nlp.sempre.test;
+
+import java.util.*;
+
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.*;
+import edu.stanford.nlp.sempre.FeatureIndex;
+import edu.stanford.nlp.sempre.FeatureVector;
+import edu.stanford.nlp.sempre.Params;
+import edu.stanford.nlp.sempre.SparseVector;
+
+/**
+ * Test feature vectors over the global feature index.
+ */
+public class FeatureVectorTest {
+
+  private static final double EPSILON = 1e-6;
+
+  private static SparseVector makeVector(int[] ids, double[] values) {
+    SparseVector vector = new SparseVector();
+    for (int i = 0; i < ids.length; i++)
+      vector.add(ids[i], values[i]);
+    return vector;
+  }
+
+  private static void assertVector(int[] ids, double[] values, SparseVector vector) {
+    assertEquals(ids.length, vector.size());
+    for (int i = 0; i < ids.length; i++) {
+      assertEquals(ids[i], vector.getId(i));
+      assertEquals(values[i], vector.getValue(i), EPSILON);
+    }
+  }
+
+  @Test
+  public void compactTest() {
+    // Duplicate ids are merged (entries that cancel out are kept)
+    SparseVector vector = makeVector(new int[] {5, 2, 5, 2, 7}, new double[] {1, 2, 3, -2, 1});
+    vector.compact();
+    assertVector(new int[] {2, 5, 7}, new double[] {0, 4, 1}, vector);
+
+    // Already compact
+    vector = makeVector(new int[] {1, 3, 4}, new double[] {1, 2, 3});
+    vector.compact();
+    assertVector(new int[] {1, 3, 4}, new double[] {1, 2, 3}, vector);
+
+    // All the same id
+    vector = makeVector(new int[] {3, 3, 3}, new double[] {1, 2, 3});
+    vector.compact();
+    assertVector(new int[] {3}, new double[] {6}, vector);
+
+    // Compacting does not change the dot product
+    double[] weights = {0, 0.5, 1, 2, 0, -1, 0, 3};
+    vector = makeVector(new int[] {5, 2, 5, 2, 7, 9}, new double[] {1, 2, 3, -2, 1, 4});
+    double dotProduct = vector.dotProduct(weights);
+    vector.compact();
+    assertEquals(dotProduct, vector.dotProduct(weights), EPSILON);
+    assertEquals(-4.0 + 3.0, dotProduct, EPSILON);
+  }
+
+  @Test
+  public void sumTest() {
+    SparseVector a = makeVector(new int[] {5, 2, 5}, new double[] {1, 2, 3});
+    SparseVector b = makeVector(new int[] {2, 7, 1, 7}, new double[] {-2, 1, 4, 1});
+    a.compact();
+    b.compact();
+    assertVector(new int[] {1, 2, 5, 7}, new double[] {4, 0, 4, 2}, SparseVector.sum(a, b));
+    assertVector(new int[] {1, 2, 5, 7}, new double[] {4, 0, 4, 2}, SparseVector.sum(b, a));
+    assertVector(new int[] {2, 5}, new double[] {2, 4}, SparseVector.sum(a, new SparseVector()));
+
+    // Summing in a tree gives the same vector as compacting all the entries at once
+    Random random = new Random(1);
+    List<SparseVector> vectors = new ArrayList<>();
+    SparseVector all = new SparseVector();
+    for (int i = 0; i < 13; i++) {
+      SparseVector vector = new SparseVector();
+      for (int j = random.nextInt(20); j > 0; j--)
+        vector.add(random.nextInt(30), random.nextInt(5) - 2);
+      all.add(1, vector);
+      vector.compact();
+      vectors.add(vector);
+    }
+    while (vectors.size() > 1) {
+      List<SparseVector> sums = new ArrayList<>();
+      for (int i = 0; i + 1 < vectors.size(); i += 2)
+        sums.add(SparseVector.sum(vectors.get(i), vectors.get(i + 1)));
+      if (vectors.size() % 2 == 1)
+        sums.add(vectors.get(vectors.size() - 1));
+      vectors = sums;
+    }
+    all.compact();
+    SparseVector sum = vectors.get(0);
+    assertEquals(all.size(), sum.size());
+    for (int i = 0; i < all.size(); i++) {
+      assertEquals(all.getId(i), sum.getId(i));
+      assertEquals(all.getValue(i), sum.getValue(i), EPSILON);
+    }
+  }
+
+  @Test
+  public void duplicateFeaturesTest() {
+    Params params = new Params();
+    Map<String, Double> gradient = new HashMap<>();
+    gradient.put("test :: dup-a", 1.0);
+    params.update(gradient);
+
+    FeatureVector fv = new FeatureVector();
+    fv.add("test", "dup-a");
+    fv.add("test", "dup-b", 2);
+    fv.add("test", "dup-a", 3);
+    fv.add("test", "dup-b");
+    Map<String, Double> map = fv.toMap();
+    assertEquals(2, map.size());
+    assertEquals(4.0, map.get("test :: dup-a"), EPSILON);
+    assertEquals(3.0, map.get("test :: dup-b"), EPSILON);
+    assertEquals(4.0 * params.getWeight("test :: dup-a"), fv.dotProduct(params), EPSILON);
+  }
+
+  @Test
+  public void extractionDoesNotIndexTest() {
+    int size = FeatureIndex.global.size();
+    FeatureVector fv = new FeatureVector();
+    fv.add("test", "unseen-a");
+    fv.add("test", "unseen-b", 2);
+    FeatureVector sum = new FeatureVector();
+    sum.add(fv);
+    sum.add(0.5, fv);
+    FeatureVector prefixed = sum.addPrefix("p:");
+    assertEquals(size, FeatureIndex.global.size());
+    assertEquals(-1, FeatureIndex.global.getIdIfPresent("test :: unseen-a"));
+    assertEquals(1.5, sum.toMap().get("test :: unseen-a"), EPSILON);
+    assertEquals(3.0, prefixed.toMap().get("p:test :: unseen-b"), EPSILON);
+
+    // Features get ids (and weights) when they are learned
+    Params params = new Params();
+    assertEquals(0.0, sum.dotProduct(params), EPSILON);
+    Map<String, Double> gradient = new HashMap<>();
+    sum.increment(1, gradient);
+    params.update(gradient);
+    assertTrue(FeatureIndex.global.getIdIfPresent("test :: unseen-a") >= 0);
+    assertEquals(1.0, params.getWeight("test :: unseen-a"), EPSILON);
+    assertEquals(1.0, params.getWeight("test :: unseen-b"), EPSILON);
+    // Vectors extracted before or after learning score the same
+    assertEquals(1.5 + 3.0, sum.dotProduct(params), EPSILON);
+    FeatureVector fv2 = new FeatureVector();
+    fv2.add("test", "unseen-a");
+    fv2.add("test", "unseen-b", 2);
+    assertEquals(fv.dotProduct(params), fv2.dotProduct(params), EPSILON);
+  }
+}
@@ -0,0 +1,201 @@
+package edu.stanford.nlp.sempre.test;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.util.*;
+
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import edu.stanford.nlp.sempre.Json;
+import edu.stanford.nlp.sempre.JsonValue;
+import edu.stanford.nlp.sempre.interactive.JsonDiff;
+import edu.stanford.nlp.sempre.interactive.JsonUtils;
+import edu.stanford.nlp.sempre.interactive.VegaJsonContextValue;
+import edu.stanford.nlp.sempre.interactive.VegaValueEvaluator;
+import fig.basic.Pair;
+
+/**
+ * Test JsonDiff against the path diff VegaValueEvaluator used to compute
+ * with JsonUtils.allPathValues.
+ */
+public class JsonDiffTest {
+  private static final JsonNodeFactory factory = JsonNodeFactory.instance;
+
+  // The previous VegaValueEvaluator.getDiffPaths
+  private static Set<List<String>> getDiffPaths(JsonNode oldNode, JsonNode newNode) {
+    List<Pair<List<String>, JsonNode>> oldLeaves = JsonUtils.allPathValues(oldNode, true);
+    List<Pair<List<String>, JsonNode>> newLeaves = JsonUtils.allPathValues(newNode, true);
+    Set<List<String>> diff = new HashSet<>();
+    for (Pair<List<String>, JsonNode> pair : oldLeaves) {
+      JsonNode newValue = JsonUtils.getPathValue(newNode, pair.getFirst());
+      if (!pair.getSecond().equals(newValue))
+        diff.add(pair.getFirst());
+    }
+    for (Pair<List<String>, JsonNode> pair : newLeaves) {
+      if (JsonUtils.getPathValue(oldNode, pair.getFirst()) == null)
+        diff.add(pair.getFirst());
+    }
+    return diff;
+  }
+
+  private static int intersectionSize(int[] a, int[] b) {
+    int n = 0;
+    for (int id : a)
+      if (Arrays.binarySearch(b, id) >= 0) n++;
+    return n;
+  }
+
+  // Same paths as the old diff, compared through the size of the diffs and their overlap
+  private static void checkDiffs(JsonDiff diff, JsonNode context, JsonNode a, JsonNode b) {
+    Set<List<String>> expectedA = getDiffPaths(context, a);
+    Set<List<String>> expectedB = getDiffPaths(context, b);
+    Set<List<String>> expectedBoth = new HashSet<>(expectedA);
+    expectedBoth.retainAll(expectedB);
+    int[] idsA = diff.diffIds(context, a);
+    int[] idsB = diff.diffIds(context, b);
+    String message = context + " -> " + a + " / " + b;
+    assertEquals(message, expectedA.size(), idsA.length);
+    assertEquals(message, expectedB.size(), idsB.length);
+    assertEquals(message, expectedBoth.size(), intersectionSize(idsA, idsB));
+    // Early stopping at the first shared path
+    assertEquals(message, !expectedBoth.isEmpty(), diff.diff(context, b, id -> Arrays.binarySearch(idsA, id) >= 0));
+  }
+
+  private static JsonNode parse(String json) {
+    return Json.readValueHard(json.replace('\'', '"'), JsonNode.class);
+  }
+
+  @Test
+  public void examplesTest() {
+    JsonDiff diff = new JsonDiff();
+    JsonNode context = parse("{'mark': 'bar', 'encoding': {'x': {'field': 'a', 'type': 'nominal'}, 'y': {'field': 'b'}}," +
+        " 'data': {'values': [{'a': 1, 'b': 2}, {'a': 3, 'b': 4}]}}");
+    List<JsonNode> specs = Arrays.asList(
+        context,
+        // Nested object values
+        parse("{'mark': 'bar', 'encoding': {'x': {'field': 'b', 'type': 'nominal'}, 'y': {'field': 'b'}}," +
+            " 'data': {'values': [{'a': 1, 'b': 2}, {'a': 3, 'b': 4}]}}"),
+        // Added and removed keys
+        parse("{'mark': 'bar', 'encoding': {'x': {'field': 'a', 'type': 'nominal', 'bin': true}, 'color': {'value': 'red'}}," +
+            " 'data': {'values': [{'a': 1, 'b': 2}, {'a': 3, 'b': 4}]}}"),
+        // Inline data: changed, added and removed elements (and fields of elements)
+        parse("{'mark': 'bar', 'encoding': {'x': {'field': 'a', 'type': 'nominal'}, 'y': {'field': 'b'}}," +
+            " 'data': {'values': [{'a': 1, 'b': 5}, {'a': 3, 'b': 4}, {'a': 6}]}}"),
+        parse("{'mark': 'bar', 'encoding': {'x': {'field': 'a', 'type': 'nominal'}, 'y': {'field': 'b'}}," +
+            " 'data': {'values': [{'a': 1}]}}"),
+        // An object replaced by an array, and a value by an object
+        parse("{'mark': {'type': 'bar'}, 'encoding': [{'field': 'a'}], 'data': {'values': []}}"),
+        parse("{}"));
+    for (JsonNode a : specs)
+      for (JsonNode b : specs)
+        checkDiffs(diff, context, a, b);
+
+    // Spot checks of the paths
+    assertEquals(Collections.singleton(Arrays.asList("encoding", "x", "field")), getDiffPaths(context, specs.get(1)));
+    assertEquals(1, diff.diffIds(context, specs.get(1)).length);
+    assertEquals(new HashSet<>(Arrays.asList(
+        Arrays.asList("data", "values", "[0]"), Arrays.asList("data", "values", "[0]", "b"),
+        Arrays.asList("data", "values", "[2]"), Arrays.asList("data", "values", "[2]", "a"))),
+        getDiffPaths(context, specs.get(3)));
+    assertEquals(4, diff.diffIds(context, specs.get(3)).length);
+  }
+
+  private static JsonNode randomNode(Random random, int depth) {
+    int kind = random.nextInt(depth <= 0 ? 3 : 5);
+    switch (kind) {
+      case 0: return factory.numberNode(random.nextInt(3));
+      case 1: return random.nextBoolean() ? factory.textNode("p") : factory.nullNode();
+      case 2: return factory.booleanNode(random.nextBoolean());
+      case 3: {
+        ObjectNode node = factory.objectNode();
+        for (String key : new String[] {"a", "b", "c"})
+          if (random.nextInt(3) > 0) node.set(key, randomNode(random, depth - 1));
+        return node;
+      }
+      default: {
+        ArrayNode node = factory.arrayNode();
+        for (int i = random.nextInt(4); i > 0; i--)
+          node.add(randomNode(random, depth - 1));
+        return node;
+      }
+    }
+  }
+
+  // A copy of |node| with a few random changes
+  private static JsonNode mutate(Random random, JsonNode node, int depth) {
+    if (random.nextInt(6) == 0)
+      return randomNode(random, depth);
+    if (node.isObject()) {
+      ObjectNode copy = factory.objectNode();
+      Iterator<Map.Entry<String, JsonNode>> it = node.fields();
+      while (it.hasNext()) {
+        Map.Entry<String, JsonNode> entry = it.next();
+        if (random.nextInt(8) > 0) copy.set(entry.getKey(), mutate(random, entry.getValue(), depth - 1));
+      }
+      if (random.nextInt(4) == 0) copy.set("d", randomNode(random, depth - 1));
+      return copy;
+    }
+    if (node.isArray()) {
+      ArrayNode copy = factory.arrayNode();
+      for (JsonNode element : node)
+        if (random.nextInt(8) > 0) copy.add(mutate(random, element, depth - 1));
+      if (random.nextInt(4) == 0) copy.add(randomNode(random, depth - 1));
+      return copy;
+    }
+    return node;
+  }
+
+  @Test
+  public void randomTreesTest() {
+    Random random = new Random(1);
+    JsonDiff diff = new JsonDiff();
+    for (int i = 0; i < 2000; i++) {
+      JsonNode context = randomNode(random, 4);
+      checkDiffs(diff, context, mutate(random, context, 4), mutate(random, context, 4));
+      checkDiffs(diff, context, randomNode(random, 4), mutate(random, context, 4));
+    }
+  }
+
+  @Test
+  public void compatibilityTest() {
+    Random random = new Random(2);
+    VegaValueEvaluator evaluator = new VegaValueEvaluator();
+    for (int i = 0; i < 500; i++) {
+      JsonNode context = randomNode(random, 4);
+      JsonNode target = mutate(random, context, 4);
+      JsonNode pred = mutate(random, context, 4);
+      Set<List<String>> shared = getDiffPaths(context, target);
+      shared.retainAll(getDiffPaths(context, pred));
+      double expected = target.equals(pred) ? 1 : shared.isEmpty() ? 0 : 0.5;
+      assertEquals(expected, evaluator.getCompatibility(new JsonValue(target), new JsonValue(pred),
+          new VegaJsonContextValue(context)), 0);
+    }
+  }
+
+  @Test
+  public void equalDataIsNotInternedTest() {
+    ArrayNode values = factory.arrayNode();
+    for (int i = 0; i < 10000; i++)
+      values.addObject().put("a", i).put("b", "row" + i);
+    ObjectNode context = factory.objectNode();
+    context.put("mark", "bar");
+    context.putObject("data").set("values", values);
+    ObjectNode candidate = (ObjectNode) context.deepCopy();
+    candidate.put("mark", "point");
+
+    JsonDiff diff = new JsonDiff();
+    assertEquals(1, diff.diffIds(context, candidate).length);
+    assertTrue("interned " + diff.size(), diff.size() < 10);
+
+    // Only the rows that changed get paths
+    ((ObjectNode) candidate.get("data").get("values").get(5000)).put("b", "changed");
+    assertEquals(3, diff.diffIds(context, candidate).length);
+    assertTrue("interned " + diff.size(), diff.size() < 10);
+  }
+}
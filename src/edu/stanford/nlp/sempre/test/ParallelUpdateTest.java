@@ -0,0 +1,134 @@
+package edu.stanford.nlp.sempre.test;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.*;
+import edu.stanford.nlp.sempre.*;
+import fig.basic.Evaluation;
+import fig.basic.LogInfo;
+
+/**
+ * Test the parallel update modes of the learner (Learner.opts.parallelUpdate).
+ */
+public class ParallelUpdateTest {
+
+  private static final double EPSILON = 1e-9;
+
+  private static void assertSameWeights(Map<String, Double> expected, Map<String, Double> actual) {
+    assertEquals(expected.keySet(), actual.keySet());
+    for (String feature : expected.keySet())
+      assertEquals(feature, expected.get(feature), actual.get(feature), EPSILON);
+  }
+
+  // Gradient of |thread| at |step|: only touches the features of |thread|.
+  private static SparseVector makeGradient(int thread, int step) {
+    SparseVector gradient = new SparseVector();
+    for (int j = 0; j < 5; j++) {
+      int id = FeatureIndex.global.getId("hogwild-test :: " + thread + ":" + ((step + j) % 7));
+      gradient.add(id, Math.sin(thread + 3 * step + j));
+    }
+    return gradient;
+  }
+
+  @Test
+  public void hogwildDisjointTest() throws Exception {
+    int numThreads = 4, numSteps = 200;
+
+    Params serial = new Params();
+    for (int thread = 0; thread < numThreads; thread++)
+      for (int step = 0; step < numSteps; step++)
+        serial.update(makeGradient(thread, step));
+
+    Params hogwild = new Params();
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int thread = 0; thread < numThreads; thread++) {
+      final int t = thread;
+      futures.add(executor.submit(() -> {
+        for (int step = 0; step < numSteps; step++)
+          hogwild.updateAsync(makeGradient(t, step));
+      }));
+    }
+    for (Future<?> future : futures)
+      future.get();
+    executor.shutdown();
+
+    // Each feature only gets the updates of one thread, in the same order as the serial run.
+    assertSameWeights(serial.getWeights(), hogwild.getWeights());
+  }
+
+  private static List<Example> makeExamples() {
+    String[][] data = {
+      {"1 and 2", "(number 3)"},
+      {"2 and 3", "(number 6)"},
+      {"3 and 4", "(number 7)"},
+      {"2 and 2", "(number 4)"},
+      {"1 plus 2 and 3", "(number 9)"},
+      {"2 times 3 and 4", "(number 10)"},
+      {"4 and 5", "(number 20)"},
+      {"1 and 1", "(number 2)"},
+    };
+    List<Example> examples = new ArrayList<>();
+    for (String[] pair : data) {
+      Example ex = TestUtils.makeSimpleExample(pair[0], Value.fromString(pair[1]));
+      ex.setContext(new ContextValue(null, null, new ArrayList<>()));  // As Dataset does
+      examples.add(ex);
+    }
+    return examples;
+  }
+
+  // What the single-threaded learner does: one update per mini-batch of summed counts.
+  private static Params learnSerially(Parser parser, int batchSize) {
+    Params params = new Params();
+    List<Example> examples = makeExamples();
+    for (int start = 0; start < examples.size(); start += batchSize) {
+      Map<String, Double> counts = new HashMap<>();
+      for (Example ex : examples.subList(start, Math.min(start + batchSize, examples.size())))
+        SempreUtils.addToDoubleMap(counts, parser.parse(params, ex, true).expectedCounts);
+      params.update(counts);
+    }
+    return params;
+  }
+
+  private static Params learnInParallel(Parser parser, int numThreads) throws Exception {
+    Params params = new Params();
+    List<Example> examples = makeExamples();
+    LearnerParallelProcessor processor = new LearnerParallelProcessor(parser, params, "test", true, new Evaluation());
+    // Examples are handed out in order, as Parallelizer does
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    List<Future<?>> futures = new ArrayList<>();
+    LogInfo.begin_threads();
+    for (int i = 0; i < examples.size(); i++) {
+      final int e = i;
+      futures.add(executor.submit(() -> processor.process(examples.get(e), e, examples.size())));
+    }
+    for (Future<?> future : futures)
+      future.get();
+    executor.shutdown();
+    LogInfo.end_threads();
+    return params;
+  }
+
+  @Test
+  public void deterministicTest() throws Exception {
+    String origParallelUpdate = Learner.opts.parallelUpdate;
+    int origBatchSize = Learner.opts.batchSize;
+    try {
+      Learner.opts.parallelUpdate = "deterministic";
+      Parser parser = new BeamParser(ParserTest.ArithmeticTest().getParserSpec());
+      for (int batchSize : new int[] {1, 3, 8}) {
+        Learner.opts.batchSize = batchSize;
+        Map<String, Double> expected = learnSerially(parser, batchSize).getWeights();
+        assertFalse(expected.isEmpty());
+        for (int numThreads : new int[] {2, 4})
+          assertSameWeights(expected, learnInParallel(parser, numThreads).getWeights());
+      }
+    } finally {
+      Learner.opts.parallelUpdate = origParallelUpdate;
+      Learner.opts.batchSize = origBatchSize;
+    }
+  }
+}
@@ -0,0 +1,110 @@
+package edu.stanford.nlp.sempre.test;
+
+import java.util.*;
+
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.*;
+import edu.stanford.nlp.sempre.FeatureIndex;
+import edu.stanford.nlp.sempre.Params;
+import edu.stanford.nlp.sempre.SparseVector;
+
+/**
+ * Test the weight updates of Params for each combination of
+ * regularization, dual averaging and adaptive step size.
+ */
+public class ParamsTest {
+
+  private static final double EPSILON = 1e-6;
+
+  private Map<String, Double> constructGradient(double a, double b, double c) {
+    Map<String, Double> gradient = new HashMap<>();
+    if (a != 0) gradient.put("params-test :: a", a);
+    if (b != 0) gradient.put("params-test :: b", b);
+    if (c != 0) gradient.put("params-test :: c", c);
+    return gradient;
+  }
+
+  // Same as constructGradient, with each value split over two entries of the same id
+  private SparseVector constructSparseGradient(double a, double b, double c) {
+    SparseVector gradient = new SparseVector();
+    for (Map.Entry<String, Double> entry : constructGradient(a, b, c).entrySet()) {
+      int id = FeatureIndex.global.getId(entry.getKey());
+      gradient.add(id, entry.getValue() / 4);
+      gradient.add(id, 3 * entry.getValue() / 4);
+    }
+    return gradient;
+  }
+
+  // Apply the same three updates with the given options and check the final weights.
+  private void checkUpdates(String l1Reg, boolean dualAveraging, boolean adaptiveStepSize,
+                            double a, double b, double c) {
+    String origL1Reg = Params.opts.l1Reg;
+    double origL1RegCoeff = Params.opts.l1RegCoeff;
+    boolean origDualAveraging = Params.opts.dualAveraging;
+    boolean origAdaptiveStepSize = Params.opts.adaptiveStepSize;
+    double origInitStepSize = Params.opts.initStepSize;
+    double origStepSizeReduction = Params.opts.stepSizeReduction;
+    try {
+      Params.opts.l1Reg = l1Reg;
+      Params.opts.l1RegCoeff = 0.1;
+      Params.opts.dualAveraging = dualAveraging;
+      Params.opts.adaptiveStepSize = adaptiveStepSize;
+      Params.opts.initStepSize = 1;
+      Params.opts.stepSizeReduction = 0;
+      String mode = l1Reg + (dualAveraging ? " dual" : "") + (adaptiveStepSize ? " adaptive" : "");
+
+      Params params = new Params();
+      params.update(constructGradient(1, -2, 0));
+      params.update(constructGradient(1, 0, 0));
+      params.update(constructGradient(0, 3, 0.5));
+      assertEquals(mode, a, params.getWeight("params-test :: a"), EPSILON);
+      assertEquals(mode, b, params.getWeight("params-test :: b"), EPSILON);
+      assertEquals(mode, c, params.getWeight("params-test :: c"), EPSILON);
+
+      params = new Params();
+      params.update(constructSparseGradient(1, -2, 0));
+      params.update(constructSparseGradient(1, 0, 0));
+      params.update(constructSparseGradient(0, 3, 0.5));
+      assertEquals(mode, a, params.getWeight("params-test :: a"), EPSILON);
+      assertEquals(mode, b, params.getWeight("params-test :: b"), EPSILON);
+      assertEquals(mode, c, params.getWeight("params-test :: c"), EPSILON);
+    } finally {
+      Params.opts.l1Reg = origL1Reg;
+      Params.opts.l1RegCoeff = origL1RegCoeff;
+      Params.opts.dualAveraging = origDualAveraging;
+      Params.opts.adaptiveStepSize = origAdaptiveStepSize;
+      Params.opts.initStepSize = origInitStepSize;
+      Params.opts.stepSizeReduction = origStepSizeReduction;
+    }
+  }
+
+  @Test
+  public void noRegularizationTest() {
+    checkUpdates("none", false, true, 1 + 1 / Math.sqrt(2), -1 + 3 / Math.sqrt(13), 1);
+    checkUpdates("none", true, true, 2 / Math.sqrt(2), 1 / Math.sqrt(13), 1);
+    checkUpdates("none", false, false, 2, 1, 0.5);
+    checkUpdates("none", true, false, 2, 1, 0.5);
+  }
+
+  @Test
+  public void nonLazyL1Test() {
+    // b changes sign in the last L1 step, so it is removed
+    checkUpdates("nonlazy", false, true, 0.9 / Math.sqrt(2) + 0.8 / Math.sqrt(3), 0, 0.4 / Math.sqrt(1.25));
+    checkUpdates("nonlazy", true, true, 1.8 / Math.sqrt(3), 0.9 / Math.sqrt(14), 0.4 / Math.sqrt(1.25));
+    checkUpdates("nonlazy", false, false, 1.7, 1.1, 0.4);
+    checkUpdates("nonlazy", true, false, 1.8, 0.9, 0.4);
+  }
+
+  @Test
+  public void lazyL1Test() {
+    // Same as nonlazy: the L1 steps a feature missed are applied when it is next used
+    checkUpdates("lazy", false, true, 0.9 / Math.sqrt(2) + 0.8 / Math.sqrt(3), 0, 0.4 / Math.sqrt(1.25));
+    // The first L1 step of a feature that was not updated with lazy L1 (dual averaging
+    // does not record update times) resets its AdaGrad sum and skips the L1 update
+    checkUpdates("lazy", true, true, 0.9 * Math.sqrt(2), 0.9 / Math.sqrt(10), 0.5 / Math.sqrt(1.25));
+    // Without AdaGrad, the first L1 step of a feature is skipped
+    checkUpdates("lazy", false, false, 1.8, 0.9, 0.5);
+    checkUpdates("lazy", true, false, 1.8, 0.9, 0.5);
+  }
+}
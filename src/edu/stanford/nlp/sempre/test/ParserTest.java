@@ -2,9 +2,13 @@ package edu.stanford.nlp.sempre.test;
 
 import edu.stanford.nlp.sempre.*;
 import fig.basic.LogInfo;
+import fig.basic.Pair;
 import org.testng.annotations.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import static org.testng.AssertJUnit.assertEquals;
@@ -166,6 +170,88 @@ public class ParserTest {
     checkNumDerivations(parser, params, "2 and 3", "(number 6)", 6);
   }
 
+  // Formula of |deriv| with the arithmetic operators written as + and *, e.g., ((+ 2) 1)
+  private static String abbreviateFormula(Derivation deriv) {
+    return deriv.formula.toString()
+        .replace("((lambda y (lambda x (call + (var x) (var y)))) ", "(+ ")
+        .replace("((lambda y (lambda x (call * (var x) (var y)))) ", "(* ")
+        .replaceAll("\\(number (\\d+)\\)", "$1");
+  }
+
+  private static void checkPruning(Parser parser, Params params, String utterance,
+                                   int maxCellSize, int numExpected, String... formulas) {
+    Example ex = TestUtils.makeSimpleExample(utterance);
+    ParserState state = parser.parse(params, ex, false);
+    assertEquals(utterance, numExpected, state.predDerivations.size());
+    assertEquals(utterance, maxCellSize, state.maxCellSize);
+    List<String> actual = new ArrayList<>();
+    for (Derivation deriv : state.predDerivations.subList(0, formulas.length))
+      actual.add(abbreviateFormula(deriv));
+    assertEquals(utterance, Arrays.asList(formulas), actual);
+  }
+
+  // The expected beams were recorded from the parser before chart cells were
+  // indexed by category id; ties must be broken the same way.
+  @Test public void checkBeamPruning() {
+    boolean origCoarsePrune = Parser.opts.coarsePrune;
+    int origBeamSize = Parser.opts.beamSize;
+    try {
+      Params params = new Params();
+      List<Pair<String, Double>> weights = new ArrayList<>();
+      weights.add(Pair.newPair("rule :: $Operator -> and (ConstantFn (lambda y (lambda x (call + (var x) (var y)))))", 1.0));
+      weights.add(Pair.newPair("rule :: $Operator -> and (ConstantFn (lambda y (lambda x (call * (var x) (var y)))))", 0.5));
+      weights.add(Pair.newPair("rule :: $Operator -> times (ConstantFn (lambda y (lambda x (call * (var x) (var y)))))", -0.7));
+      weights.add(Pair.newPair("rule :: $Expr -> $TOKEN (NumberFn)", 0.1));
+      weights.add(Pair.newPair("rule :: $Partial -> $Operator $Expr (JoinFn forward)", 0.3));
+      params.init(weights);
+      Parser parser = new BeamParser(ArithmeticTest().getParserSpec());
+
+      for (boolean coarsePrune : new boolean[] {false, true}) {
+        Parser.opts.coarsePrune = coarsePrune;
+        Parser.opts.beamSize = 200;
+        checkPruning(parser, params, "1 and 2 and 3 and 4", 40, 40,
+            "((+ ((+ 4) 3)) ((+ 2) 1))", "((+ 4) ((+ ((+ 3) 2)) 1))", "((+ 4) ((+ 3) ((+ 2) 1)))",
+            "((+ ((+ ((+ 4) 3)) 2)) 1)", "((+ ((+ 4) ((+ 3) 2))) 1)", "((* ((+ 4) 3)) ((+ 2) 1))");
+        checkPruning(parser, params, "2 times 3 and 4 plus 5", 10, 10,
+            "((* ((+ 5) ((+ 4) 3))) 2)", "((+ 5) ((* ((+ 4) 3)) 2))", "((* ((+ ((+ 5) 4)) 3)) 2)",
+            "((+ ((+ 5) 4)) ((* 3) 2))", "((+ 5) ((+ 4) ((* 3) 2)))", "((* ((* ((+ 5) 4)) 3)) 2)");
+        checkPruning(parser, params, "1 plus 2 +", 1, 0);
+
+        Parser.opts.beamSize = 3;
+        checkPruning(parser, params, "1 and 2 and 3 and 4", 15, 3,
+            "((+ ((+ 4) 3)) ((+ 2) 1))", "((+ 4) ((+ ((+ 3) 2)) 1))", "((+ 4) ((+ 3) ((+ 2) 1)))");
+        checkPruning(parser, params, "2 times 3 and 4 plus 5", 8, 3,
+            "((* ((+ 5) ((+ 4) 3))) 2)", "((+ 5) ((* ((+ 4) 3)) 2))", "((* ((+ ((+ 5) 4)) 3)) 2)");
+      }
+
+      // Without coarse pruning, every cell keeps its best derivations
+      Parser.opts.coarsePrune = false;
+      Parser.opts.beamSize = 2;
+      checkPruning(parser, params, "1 and 2 and 3 and 4", 10, 2,
+          "((+ ((+ 4) 3)) ((+ 2) 1))", "((+ 4) ((+ ((+ 3) 2)) 1))");
+      checkPruning(parser, params, "2 times 3 and 4 plus 5", 6, 2,
+          "((* ((+ 5) ((+ 4) 3))) 2)", "((+ 5) ((* ((+ 4) 3)) 2))");
+      Parser.opts.beamSize = 1;
+      checkPruning(parser, params, "1 and 2 and 3 and 4", 3, 1, "((+ ((+ 4) 3)) ((+ 2) 1))");
+      checkPruning(parser, params, "2 times 3 and 4 plus 5", 3, 1, "((* ((+ 5) ((+ 4) 3))) 2)");
+
+      // With coarse pruning, derivations that cannot reach the root are dropped
+      // before the beam is cut, so other derivations fill it
+      Parser.opts.coarsePrune = true;
+      Parser.opts.beamSize = 2;
+      checkPruning(parser, params, "1 and 2 and 3 and 4", 6, 2,
+          "((+ ((+ 4) 3)) ((+ 2) 1))", "((+ ((+ ((+ 4) 3)) 2)) 1)");
+      checkPruning(parser, params, "2 times 3 and 4 plus 5", 4, 2,
+          "((* ((+ 5) ((+ 4) 3))) 2)", "((* ((+ ((+ 5) 4)) 3)) 2)");
+      Parser.opts.beamSize = 1;
+      checkPruning(parser, params, "1 and 2 and 3 and 4", 2, 1, "((+ ((+ ((+ 4) 3)) 2)) 1)");
+      checkPruning(parser, params, "2 times 3 and 4 plus 5", 2, 1, "((* ((+ ((+ 5) 4)) 3)) 2)");
+    } finally {
+      Parser.opts.coarsePrune = origCoarsePrune;
+      Parser.opts.beamSize = origBeamSize;
+    }
+  }
+
   // TODO(chaganty): verify the parser gradients
 
 
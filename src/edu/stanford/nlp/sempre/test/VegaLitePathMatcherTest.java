@@ -25,4 +25,27 @@ public class VegaLitePathMatcherTest {
     assertEquals(1, matches.size());
     assertEquals(Arrays.asList("config", "boxWhisker", "opacity"), matches.get(0));
   }
+
+  @Test
+  public void testOrderedMatch() {
+    VegaLitePathMatcher matcher = new VegaLitePathMatcher(Arrays.asList(
+        Arrays.asList("encoding", "x", "scale", "type"),
+        Arrays.asList("encoding", "x", "type"),
+        Arrays.asList("config", "axis", "labelColor"),
+        Arrays.asList("config", "scale", "type"),
+        Arrays.asList("encoding", "x", "type")));
+
+    // distinct paths, sorted by their concatenation
+    assertEquals(Arrays.asList(
+        Arrays.asList("encoding", "x", "scale", "type"),
+        Arrays.asList("encoding", "x", "type")),
+        matcher.match(Arrays.asList("type", "x")));
+    assertEquals(0, matcher.match(Arrays.asList("x", "nonexistent")).size());
+
+    assertEquals(2, matcher.orderedMatch(Arrays.asList("x", "type")).size());
+    assertEquals(0, matcher.orderedMatch(Arrays.asList("type", "x")).size());
+    List<List<String>> matches = matcher.orderedMatch(Arrays.asList("scale", "type"));
+    assertEquals(2, matches.size());
+    assertEquals(Arrays.asList("config", "scale", "type"), matches.get(0));
+  }
 }